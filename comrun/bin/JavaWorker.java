@@ -0,0 +1,575 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.Security;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Handler;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import javax.tools.ToolProvider;
+
+/*
+  A long-lived JVM that executes Java, Kotlin, and Scala programs and Java CALL testers
+  (see JavaLanguage.writeTester), and compiles Java and Kotlin sources, so that they don't
+  pay for starting a JVM and the compilers stay loaded. server.js keeps
+  a pool of these workers, each started as the COMRUN_USER in a directory of its own with
+
+  java -Djava.awt.headless=true -Dcom.horstmann.codecheck JavaWorker.java maxrequests
+
+  A worker prints "ready" when it can take a request, and then reads a line from stdin:
+
+  kind command dir input output maxlines timeout libraries classpath class arg1 arg2 ...
+
+  kind is run for a program, and call for a CALL tester, whose arguments are all delimiter
+  timeout maxlines, and optionally the first call to run (see Main.doCalls). command is the command that would run the program in a JVM
+  of its own (java, kotlin, scala). The program runs in dir, reads the input file, and writes
+  up to maxlines lines into the output file, within timeout milliseconds. libraries are the
+  jars of the language runtime, which are loaded once. classpath are the directories and
+  jars of the program, which are loaded with a fresh class loader for each run, or for each
+  call of a CALL tester. Both are separated by colons, with - if empty, and x/* stands for the
+  jars in x. When the request has been executed, the worker prints "done", followed by 137 if
+  the program timed out, 124 if a call timed out, or 1 if a call exited the JVM, the exit statuses
+  of timeout -s 9 and of the tester in a JVM of its own.
+
+  kind is compile for compiling with the arguments in dir, as with the given command (javac,
+  kotlinc). The messages go to the output file. For kotlinc, libraries are the jars of the
+  compiler, and class is its main class. When the compiler has completed, the worker prints
+  "done" and the exit status of the compiler, or "timeout" if it didn't complete in time.
+  Then preload.sh doesn't run the compiler again, since it would take as long.
+
+  A JVM can't change its working directory. Therefore, the files of dir are linked into the
+  directory of the worker before the request, and new or replaced files are copied back
+  afterwards.
+
+  A program runs on a platform thread named main, and the worker waits for the other threads
+  that it starts, as the JVM does. Each call runs on a platform thread, and its output is
+  discarded after it has completed or timed out, so that the threads that it leaves behind
+  can't write into the output of another call. Calls don't run on virtual threads because
+  those aren't preempted, and a call that loops forever would keep the others from running.
+  Each call writes up to maxlines lines. The calls after a call that timed out or exited the
+  JVM are not run. As with the tester in a JVM of its own, preload.sh runs them in a new request.
+
+  When a program or call exits the JVM, the worker prints "done" before terminating. The
+  worker also terminates after printing "done" if the request timed out, left threads running,
+  replaced a standard stream, changed JVM-wide state that can't be reset (the default uncaught
+  exception handler, the configuration of java.util.logging, the security providers), or left
+  much of the heap in use, and after maxrequests requests. The System properties, the default
+  Locale and TimeZone are reset after each request. When server.js closes the input of the
+  worker, as when the client of the request went away, the worker terminates at once.
+  server.js then starts another worker. If a worker terminates without printing "done", or the
+  request can't be executed in the worker, such as a program without a main method, the client
+  runs the program in a JVM of its own.
+*/
+public class JavaWorker {
+    private static final int MAX_OUTPUT_BYTES = 1_024_000; // as with ulimit -f 1000 in preload.sh
+    private static final Duration GRACE = Duration.ofMillis(100);
+    private static final long COMPILER_STACK_SIZE = 16 * 1024 * 1024; // for deeply nested expressions
+
+    private static final PrintStream protocol = new PrintStream(new FileOutputStream(FileDescriptor.out), true, StandardCharsets.UTF_8);
+    private static final Path workDir = Path.of("").toAbsolutePath();
+    private static final Map<String, ClassLoader> libraryLoaders = new HashMap<>();
+
+    private static final InheritableThreadLocal<OutputStream> output = new InheritableThreadLocal<>();
+    private static final PrintStream out = new PrintStream(new OutputStream() {
+            public void write(int b) throws IOException { write(new byte[] { (byte) b }, 0, 1); }
+            public void write(byte[] b, int off, int len) throws IOException {
+                OutputStream target = output.get();
+                if (target != null) target.write(b, off, len);
+            }
+        }, true, Charset.forName(System.getProperty("stdout.encoding", "UTF-8"), StandardCharsets.UTF_8));
+
+    private static Request current;
+
+    public static void main(String[] args) throws Exception {
+        int maxRequests = Integer.parseInt(args[0]);
+        BlockingQueue<String> requests = new LinkedBlockingQueue<>();
+        Thread.ofPlatform().daemon().start(() -> readRequests(requests));
+        System.setOut(out);
+        System.setErr(out);
+        System.setIn(InputStream.nullInputStream());
+        Runtime.getRuntime().addShutdownHook(new Thread(JavaWorker::finish));
+        Properties properties = (Properties) System.getProperties().clone();
+        Locale locale = Locale.getDefault();
+        TimeZone timeZone = TimeZone.getDefault();
+        List<Object> globalState = globalState();
+
+        boolean healthy = true;
+        for (int n = 0; n < maxRequests && healthy; n++) {
+            protocol.println("ready");
+            String line = requests.take();
+            Request request = new Request(line.trim().split("\\s+"));
+            synchronized (JavaWorker.class) { current = request; }
+            try {
+                enter(request);
+                healthy = switch (request.kind) {
+                    case "call" -> call(request);
+                    case "compile" -> compile(request);
+                    default -> run(request);
+                };
+            } catch (Exception ex) {
+                ex.printStackTrace(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+                request.status = "unsupported";
+                healthy = false;
+            }
+            finish();
+            System.setIn(InputStream.nullInputStream());
+            healthy = healthy && System.out == out && System.err == out && globalState().equals(globalState);
+            System.setOut(out);
+            System.setErr(out);
+            System.setProperties((Properties) properties.clone());
+            Locale.setDefault(locale);
+            TimeZone.setDefault(timeZone);
+            Runtime runtime = Runtime.getRuntime();
+            healthy = healthy && runtime.totalMemory() - runtime.freeMemory() < runtime.maxMemory() / 4 * 3;
+        }
+        // Other threads of the requests may still be running
+        Runtime.getRuntime().halt(0);
+    }
+
+    /*
+     * The requests are read on a thread of their own, so that the end of the input is noticed
+     * while a request is running. Then the request is abandoned.
+     */
+    private static void readRequests(BlockingQueue<String> requests) {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(FileDescriptor.in), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) requests.put(line);
+        } catch (IOException | InterruptedException ex) {
+            // As at the end of the input
+        }
+        Runtime.getRuntime().halt(1);
+    }
+
+    /**
+     * The JVM-wide state that a request can change, but that can't be reset, because it
+     * might be held by threads or objects that the request left behind.
+     */
+    private static List<Object> globalState() {
+        Map<String, List<Object>> loggers = new HashMap<>();
+        LogManager manager = LogManager.getLogManager();
+        for (String name : Collections.list(manager.getLoggerNames())) {
+            Logger logger = manager.getLogger(name);
+            if (logger == null) continue;
+            List<Object> handlers = new ArrayList<>();
+            for (Handler handler : logger.getHandlers())
+                handlers.add(Arrays.asList(handler, handler.getLevel(), handler.getFormatter(), handler.getFilter()));
+            if (name.isEmpty() || logger.getLevel() != null || !handlers.isEmpty() || !logger.getUseParentHandlers()
+                    || logger.getFilter() != null)
+                loggers.put(name, Arrays.asList(logger.getLevel(), handlers, logger.getUseParentHandlers(), logger.getFilter()));
+        }
+        return Arrays.asList(Thread.getDefaultUncaughtExceptionHandler(), List.of(Security.getProviders()), loggers);
+    }
+
+    private static class Request {
+        String kind;
+        String command;
+        Path dir;
+        Path input;
+        Path outputFile;
+        int maxLines;
+        long timeout;
+        String libraries;
+        String classpath;
+        String className;
+        String[] args;
+
+        LimitedOutput output;
+        int call; // the running call of a CALL tester, or 0
+        CallOutput callOutput;
+        Map<Path, Path> linked = new HashMap<>(); // files in the working directory of the worker -> files in dir
+        String status = "done";
+        boolean finished;
+
+        Request(String[] fields) throws IOException {
+            kind = fields[0];
+            command = fields[1];
+            dir = Path.of(fields[2]);
+            input = fields[3].equals("-") ? null : Path.of(fields[3]);
+            outputFile = Path.of(fields[4]);
+            maxLines = Integer.parseInt(fields[5]);
+            timeout = Long.parseLong(fields[6]);
+            libraries = fields[7];
+            classpath = fields[8];
+            className = fields[9];
+            args = Arrays.copyOfRange(fields, 10, fields.length);
+        }
+    }
+
+    /**
+     * Completes the current request: copies back the files that it wrote and prints the reply.
+     * This happens when the request has been executed, or when it exits the JVM.
+     */
+    private static synchronized void finish() {
+        if (current == null || current.finished) return;
+        current.finished = true;
+        try {
+            if (current.call != 0) { // a call exited the JVM
+                current.callOutput.close();
+                current.status = "done 1"; // as with the tester in a JVM of its own
+            }
+            if (current.output != null) current.output.close();
+            leave(current);
+        } catch (IOException ex) {
+            current.status = "unsupported";
+        }
+        protocol.println(current.status);
+    }
+
+    private static boolean run(Request request) throws Exception {
+        URLClassLoader loader = new URLClassLoader(urls(request.classpath, request.dir), libraryLoader(request.libraries));
+        loader.setDefaultAssertionStatus(request.command.equals("java")); // as with java -ea
+        Method main;
+        try {
+            main = loader.loadClass(request.className).getMethod("main", String[].class);
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            request.status = "unsupported"; // so that the JVM reports the problem as usual
+            return true;
+        }
+        if (!Modifier.isStatic(main.getModifiers())) {
+            request.status = "unsupported";
+            return true;
+        }
+        request.output = new LimitedOutput(new FileOutputStream(request.outputFile.toFile()), request.maxLines);
+        output.set(request.output);
+        System.setIn(request.input == null ? InputStream.nullInputStream()
+            : new BufferedInputStream(Files.newInputStream(request.input)));
+        Set<Thread> before = Thread.getAllStackTraces().keySet();
+        long deadline = System.currentTimeMillis() + request.timeout;
+        Thread thread = Thread.ofPlatform().name("main").unstarted(() -> {
+                try {
+                    main.invoke(null, (Object) request.args);
+                } catch (Throwable ex) {
+                    if (ex instanceof InvocationTargetException) ex = ex.getCause();
+                    trim(ex);
+                    System.err.print("Exception in thread \"main\" ");
+                    ex.printStackTrace(System.err);
+                }
+            });
+        thread.setContextClassLoader(loader);
+        thread.start();
+        output.remove();
+
+        // Like the JVM, wait until the non-daemon threads of the program have completed
+        boolean completed = join(thread, deadline);
+        Set<Thread> started = new HashSet<>(Thread.getAllStackTraces().keySet());
+        started.removeAll(before);
+        for (Thread t : started)
+            if (!t.isDaemon()) completed = completed && join(t, deadline);
+        if (!completed) {
+            request.output.write(("timeout: sending signal KILL to command '" + request.command + "'\n").getBytes(StandardCharsets.UTF_8));
+            request.status = "done 137"; // as with timeout -s 9
+        }
+        loader.close();
+        return completed && started.stream().noneMatch(Thread::isAlive);
+    }
+
+    private static boolean call(Request request) throws Exception {
+        String delimiter = request.args[1];
+        long timeout = Long.parseLong(request.args[2]);
+        int maxLines = Integer.parseInt(request.args[3]);
+        int first = request.args.length > 4 ? Integer.parseInt(request.args[4]) : 1;
+        URL[] urls = urls(request.classpath, request.dir);
+        ClassLoader parent = libraryLoader(request.libraries);
+        boolean healthy = true;
+        request.output = new LimitedOutput(new FileOutputStream(request.outputFile.toFile()), request.maxLines);
+        int calls = first; // until the tester is loaded
+        for (int k = first; k <= calls; k++) {
+            URLClassLoader loader = new URLClassLoader(urls, parent);
+            loader.setDefaultAssertionStatus(true);
+            Class<?> tester = loader.loadClass(request.className);
+            calls = tester.getField("_CALLS").getInt(null);
+            if (k > calls) {
+                loader.close();
+                break;
+            }
+            Method call = tester.getMethod("_call", String.class);
+            request.output.write((delimiter + " " + k + "\n").getBytes(StandardCharsets.UTF_8));
+
+            CallOutput callOutput = new CallOutput(request.output, maxLines);
+            startCall(request, k, callOutput);
+            output.set(callOutput);
+            String arg = "" + k;
+            Set<Thread> before = Thread.getAllStackTraces().keySet();
+            Thread thread = Thread.ofPlatform().daemon().unstarted(() -> {
+                    try { call.invoke(null, arg); }
+                    catch (ReflectiveOperationException ex) { ex.printStackTrace(out); }
+                });
+            thread.setContextClassLoader(loader);
+            thread.start();
+            output.remove();
+            if (!thread.join(Duration.ofMillis(timeout))) {
+                callOutput.close();
+                thread.interrupt();
+                request.output.write(("timeout: call " + k + " did not complete in " + timeout + " milliseconds\n").getBytes(StandardCharsets.UTF_8));
+                request.status = "done 124"; // as with the tester in a JVM of its own
+                if (!thread.join(GRACE)) healthy = false;
+                calls = k; // preload.sh runs the others in a new request
+            }
+            startCall(request, 0, null);
+            callOutput.close();
+            loader.close();
+            // As in run, a thread that the call left behind could interfere with later requests
+            Set<Thread> started = new HashSet<>(Thread.getAllStackTraces().keySet());
+            started.removeAll(before);
+            if (started.stream().anyMatch(Thread::isAlive)) healthy = false;
+        }
+        return healthy;
+    }
+
+    private static synchronized void startCall(Request request, int call, CallOutput callOutput) {
+        request.call = call;
+        request.callOutput = callOutput;
+    }
+
+    private static boolean compile(Request request) throws Exception {
+        request.output = new LimitedOutput(new FileOutputStream(request.outputFile.toFile()), request.maxLines);
+        PrintStream messages = new PrintStream(request.output, true, out.charset());
+        String[] args = request.args.clone();
+        for (int i = 0; i < args.length - 1; i++)
+            if (args[i].equals("-cp") || args[i].equals("-classpath") || args[i].equals("--class-path"))
+                args[i + 1] = expand(args[i + 1]); // as the launcher of the command does
+        ClassLoader loader;
+        Method exec;
+        if (request.command.equals("javac")) {
+            loader = ClassLoader.getSystemClassLoader();
+            exec = null;
+        } else {
+            loader = libraryLoader(request.libraries);
+            try {
+                exec = loader.loadClass(request.className).getMethod("exec", PrintStream.class, String[].class);
+            } catch (ReflectiveOperationException | LinkageError ex) {
+                request.status = "unsupported";
+                return true;
+            }
+        }
+        int[] exitCode = { -1 };
+        output.set(request.output);
+        Thread thread = Thread.ofPlatform().name("main").stackSize(COMPILER_STACK_SIZE).unstarted(() -> {
+                try {
+                    if (exec == null)
+                        exitCode[0] = ToolProvider.getSystemJavaCompiler().run(InputStream.nullInputStream(), messages, messages, args);
+                    else {
+                        Object result = exec.invoke(exec.getDeclaringClass().getConstructor().newInstance(), messages, args);
+                        exitCode[0] = (Integer) result.getClass().getMethod("getCode").invoke(result);
+                    }
+                } catch (Throwable ex) {
+                    ex.printStackTrace(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+                }
+            });
+        thread.setContextClassLoader(loader);
+        thread.start();
+        output.remove();
+        if (!thread.join(Duration.ofMillis(request.timeout))) {
+            request.status = "timeout";
+            return false;
+        }
+        messages.flush();
+        if (exitCode[0] < 0) {
+            request.status = "unsupported"; // the compiler crashed
+            return false;
+        }
+        request.status = "done " + exitCode[0];
+        return true;
+    }
+
+    /**
+     * Expands x/* in a class path into the jars in x.
+     */
+    private static String expand(String classpath) throws IOException {
+        List<String> entries = new ArrayList<>();
+        for (String entry : classpath.split(":")) {
+            if (entry.endsWith("/*")) {
+                Path jarDir = workDir.resolve(entry.substring(0, entry.length() - 2));
+                if (!Files.isDirectory(jarDir)) continue;
+                try (Stream<Path> jars = Files.list(jarDir)) {
+                    jars.map(Path::toString).filter(p -> p.endsWith(".jar")).sorted().forEach(entries::add);
+                }
+            }
+            else entries.add(entry);
+        }
+        return String.join(":", entries);
+    }
+
+    private static boolean join(Thread thread, long deadline) throws InterruptedException {
+        long millis = deadline - System.currentTimeMillis();
+        return millis > 0 && thread.join(Duration.ofMillis(millis)) || !thread.isAlive();
+    }
+
+    /**
+     * Removes the frames of the worker from a stack trace, so that it looks as if the program had
+     * been launched by the JVM.
+     */
+    private static void trim(Throwable ex) {
+        Set<Throwable> seen = new HashSet<>();
+        for (Throwable t = ex; t != null && seen.add(t); t = t.getCause()) {
+            StackTraceElement[] frames = t.getStackTrace();
+            int n = frames.length;
+            while (n > 0 && (frames[n - 1].getClassName().startsWith("JavaWorker")
+                    || frames[n - 1].getModuleName() != null && frames[n - 1].getModuleName().startsWith("java.")))
+                n--;
+            t.setStackTrace(Arrays.copyOf(frames, n));
+        }
+    }
+
+    private static ClassLoader libraryLoader(String libraries) throws IOException {
+        if (libraries.equals("-")) return ClassLoader.getPlatformClassLoader();
+        synchronized (libraryLoaders) {
+            ClassLoader loader = libraryLoaders.get(libraries);
+            if (loader == null) {
+                loader = new URLClassLoader(urls(libraries, workDir), ClassLoader.getPlatformClassLoader());
+                libraryLoaders.put(libraries, loader);
+            }
+            return loader;
+        }
+    }
+
+    private static URL[] urls(String classpath, Path dir) throws IOException {
+        List<URL> urls = new ArrayList<>();
+        if (classpath.equals("-")) return new URL[0];
+        for (String entry : classpath.split(":")) {
+            if (entry.endsWith("/*")) {
+                Path jarDir = dir.resolve(entry.substring(0, entry.length() - 2));
+                if (!Files.isDirectory(jarDir)) continue;
+                try (Stream<Path> entries = Files.list(jarDir)) {
+                    for (Path p : entries.filter(p -> p.toString().endsWith(".jar")).sorted().toList())
+                        urls.add(p.toUri().toURL());
+                }
+            }
+            else urls.add(dir.resolve(entry).toUri().toURL());
+        }
+        return urls.toArray(new URL[0]);
+    }
+
+    /**
+     * Links the files of the request directory into the working directory of the worker.
+     */
+    private static void enter(Request request) throws IOException {
+        try (Stream<Path> entries = Files.walk(request.dir)) {
+            for (Path p : entries.toList()) {
+                Path target = workDir.resolve(request.dir.relativize(p).toString());
+                if (Files.isDirectory(p)) Files.createDirectories(target);
+                else if (Files.isRegularFile(p)) {
+                    try {
+                        Files.createLink(target, p);
+                    } catch (IOException | UnsupportedOperationException ex) {
+                        Files.copy(p, target, StandardCopyOption.COPY_ATTRIBUTES);
+                    }
+                    request.linked.put(target, p);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the files that the request created or replaced back to the request directory, and
+     * empties the working directory of the worker.
+     */
+    private static void leave(Request request) throws IOException {
+        List<Path> entries;
+        try (Stream<Path> walk = Files.walk(workDir)) {
+            entries = walk.filter(p -> !p.equals(workDir)).sorted(Comparator.reverseOrder()).toList();
+        }
+        for (Path p : entries) {
+            if (Files.isRegularFile(p)) {
+                Path original = request.linked.get(p);
+                if (original == null || !Files.isSameFile(p, original)) {
+                    Path target = request.dir.resolve(workDir.relativize(p).toString());
+                    Files.createDirectories(target.getParent());
+                    Files.copy(p, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        for (Path p : entries) Files.deleteIfExists(p);
+    }
+
+    /**
+     * The output of a call, up to a given number of lines, which is discarded after the call
+     * has completed or timed out.
+     */
+    private static class CallOutput extends OutputStream {
+        private final OutputStream target;
+        private final int maxLines;
+        private int lines;
+        private volatile boolean open = true;
+
+        CallOutput(OutputStream target, int maxLines) {
+            this.target = target;
+            this.maxLines = maxLines;
+        }
+
+        public void write(int b) throws IOException { write(new byte[] { (byte) b }, 0, 1); }
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (!open) return;
+            int end = off;
+            while (end < off + len && lines < maxLines) if (b[end++] == '\n') lines++;
+            target.write(b, off, end - off);
+        }
+        public void close() { open = false; }
+    }
+
+    /**
+     * Writes at most a given number of lines, as head --lines does in preload.sh.
+     */
+    private static class LimitedOutput extends OutputStream {
+        private final OutputStream target;
+        private final int maxLines;
+        private int lines;
+        private int bytes;
+        private boolean closed;
+
+        LimitedOutput(OutputStream target, int maxLines) {
+            this.target = target;
+            this.maxLines = maxLines;
+        }
+
+        public void write(int b) throws IOException { write(new byte[] { (byte) b }, 0, 1); }
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (closed) return;
+            int end = off;
+            while (end < off + len && lines < maxLines && bytes < MAX_OUTPUT_BYTES) {
+                if (b[end] == '\n') lines++;
+                end++;
+                bytes++;
+            }
+            target.write(b, off, end - off);
+        }
+        public synchronized void close() throws IOException {
+            closed = true;
+            target.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+#!/usr/bin/python3
+
+# Reads and writes framed files. Each file is a header line "length path",
+# followed by length bytes of contents. A frame with the path "." marks
+# the end of a response. In a request, a header "=hash path" without contents
+# is a reference to the file with the given SHA-256 hash in the blob cache,
+# and a frame with the path "=hash" is a blob, which server.js has added to
+# the cache.
+#
+# frames.py resolve blobdir
+#   Copies frames from stdin to stdout, until the end of the input or the end
+#   marker, and replaces the references with the files from the blob cache in
+#   blobdir. comrun resolves the references as the user who owns the cache, so
+#   that the COMRUN_USER only gets the blobs of its job.
+# frames.py unpack
+#   Reads frames from stdin and writes the files into the current directory,
+#   until the end of the input or the end marker.
+# frames.py pack [--sent file] path ...
+#   Writes the files below the given paths (relative to the current directory)
+#   as frames to stdout. With --sent, files are skipped if they were sent
+#   before without having changed since, and the sent files are recorded.
+# frames.py end
+#   Writes the end marker
+
+import os
+import re
+import sys
+
+def resolve(blobdir):
+    inp = sys.stdin.buffer
+    out = sys.stdout.buffer
+    while True:
+        header = inp.readline()
+        if not header:
+            break
+        length, path = header.decode('utf-8').rstrip('\n').split(' ', 1)
+        if path == '.':
+            out.write(header)
+            break
+        if not length.startswith('='):
+            out.write(header)
+            out.write(inp.read(int(length)))
+            continue
+        blob = length[1:]
+        if not re.fullmatch('[0-9a-f]{64}', blob):
+            print('No blob for', path, file=sys.stderr)
+            continue
+        try:
+            with open(os.path.join(blobdir, blob), 'rb') as f:
+                contents = f.read()
+        except OSError as e:
+            print(e, file=sys.stderr)
+            continue
+        out.write(('%d %s\n' % (len(contents), path)).encode('utf-8'))
+        out.write(contents)
+    out.flush()
+
+def unpack():
+    inp = sys.stdin.buffer
+    while True:
+        header = inp.readline()
+        if not header:
+            return
+        length, path = header.decode('utf-8').rstrip('\n').split(' ', 1)
+        if path == '.':
+            return
+        if length.startswith('='):
+            print('No blob for', path, file=sys.stderr)
+            continue
+        contents = inp.read(int(length))
+        if path.startswith('=') or os.path.isabs(path) or '..' in path.split('/'):
+            continue
+        directory = os.path.dirname(path)
+        if directory:
+            os.makedirs(directory, exist_ok=True)
+        with open(path, 'wb') as f:
+            f.write(contents)
+
+def pack(paths, sentfile):
+    sent = set()
+    if sentfile is not None and os.path.exists(sentfile):
+        with open(sentfile) as f:
+            sent = set(line.rstrip('\n') for line in f)
+    files = set()
+    for p in paths:
+        if os.path.isfile(p):
+            files.add(os.path.normpath(p))
+        elif os.path.isdir(p):
+            for root, dirs, names in os.walk(p):
+                files.update(os.path.normpath(os.path.join(root, name)) for name in names)
+    out = sys.stdout.buffer
+    record = []
+    for path in sorted(files):
+        stat = os.stat(path)
+        key = '%s %d %d' % (path, stat.st_mtime_ns, stat.st_size)
+        if key in sent:
+            continue
+        with open(path, 'rb') as f:
+            contents = f.read()
+        out.write(('%d %s\n' % (len(contents), path)).encode('utf-8'))
+        out.write(contents)
+        record.append(key)
+    out.flush()
+    if sentfile is not None and record:
+        with open(sentfile, 'a') as f:
+            f.writelines(key + '\n' for key in record)
+
+if sys.argv[1] == 'resolve':
+    resolve(sys.argv[2])
+elif sys.argv[1] == 'unpack':
+    unpack()
+elif sys.argv[1] == 'pack':
+    if len(sys.argv) > 3 and sys.argv[2] == '--sent':
+        pack(sys.argv[4:], sys.argv[3])
+    else:
+        pack(sys.argv[2:], None)
+elif sys.argv[1] == 'end':
+    sys.stdout.buffer.write(b'0 .\n')
+    sys.stdout.buffer.flush()
@@ -8,8 +8,6 @@ import sys
 import tty
 import time
 
-sys.stdout = open(sys.stdout.fileno(), mode="w", encoding="utf8")
-
 INITIAL_MAX_SELECT_ITERS=50
 MIDDLE_MAX_SELECT_ITERS=25
 SLEEP_BETWEEN_SELECT=0.01 
@@ -26,23 +24,32 @@ def readAvailable(p, max_iters):
       iters += 1
    return output
 
-with subprocess.Popen(sys.argv[1:], stdin=subprocess.PIPE, stdout=subprocess.PIPE, stderr=subprocess.STDOUT, bufsize=0) as p :
+# Feeds the lines of input to the process p, and writes its output to output,
+# with each input line enclosed in 〈〉 after the output that preceded it.
+# p needs poll, communicate, returncode, and unbuffered stdin and stdout, as
+# with a subprocess.Popen (see also zygote.py).
+def interleave(p, input, output):
    select_iters = INITIAL_MAX_SELECT_ITERS
    try :
-      for line in sys.stdin :
+      for line in input :
          out = readAvailable(p, select_iters)
-         sys.stdout.write(out)
+         output.write(out)
          time.sleep(SLEEP_BEFORE_SENDING_INPUT)
          if p.poll() == None :
             p.stdin.write(bytes(line, "utf-8"))
-            sys.stdout.write("〈" + line.replace("\n", "〉\n"))
+            output.write("〈" + line.replace("\n", "〉\n"))
             time.sleep(SLEEP_AFTER_SENDING_INPUT)
             select_iters = MIDDLE_MAX_SELECT_ITERS
          else :
             break
       final_output = p.communicate()
-      sys.stdout.write(str(final_output[0], "utf-8"))
+      output.write(str(final_output[0], "utf-8"))
    except BrokenPipeError :
       pass
    if p.returncode != None and p.returncode < 0 :
-      sys.stdout.write("Terminated by signal " + str(-p.returncode))
+      output.write("Terminated by signal " + str(-p.returncode))
+
+if __name__ == "__main__" :
+   sys.stdout = open(sys.stdout.fileno(), mode="w", encoding="utf8")
+   with subprocess.Popen(sys.argv[1:], stdin=subprocess.PIPE, stdout=subprocess.PIPE, stderr=subprocess.STDOUT, bufsize=0) as p :
+      interleave(p, sys.stdin, sys.stdout)
@@ -3,17 +3,36 @@
 # TODO get env dynamically
 CODECHECK_HOME=/opt/codecheck
 MAXOUTPUTLEN=10000
+COMPILETIMEOUT=50 # seconds, for the compilers in JavaWorker.java, within Step.TOOL_TIMEOUT
 
 BASE=$(pwd)
 PATH=$PATH:/usr/lib/kotlinc/bin
 
+# A directory is marked in _failed if its compilation failed or if it was
+# prepared from a failed directory. Runs in a failed directory are skipped.
+
 # args: dir sourceDir sourceDir ...
+# Read-only files, such as those in use (see comrun), are shared with hard links.
+# Other files are copied, as copy-on-write clones if the file system supports it.
+# Existing files are replaced, not overwritten, so that shared files stay unchanged.
 function prepare {
   cd $BASE
   mkdir $1
-  cd $1
+  for d in ${@:2} ; do
+    if [[ -e $BASE/_failed/$d ]] ; then touch $BASE/_failed/$1 ; fi
+  done
+  local TARGET=$BASE/$1
   shift
-  for d in $@ ; do cp -R $BASE/$d/* . 2>/dev/null ; done  
+  for d in $@ ; do
+    [[ -d $BASE/$d && $d != ${TARGET#$BASE/} ]] || continue
+    cd $BASE/$d
+    find . -mindepth 1 -type d -printf "$TARGET/%P\0" | xargs -0 -r mkdir -p
+    # Read-only files are shared by linking, or copied when they can't be linked, e.g. across file systems
+    find . -type f ! -perm /222 -print0 | xargs -0 -r cp --parents --remove-destination -l -t $TARGET 2>/dev/null ||
+      find . -type f ! -perm /222 -print0 | xargs -0 -r cp --parents --remove-destination -t $TARGET
+    find . -type f -perm /222 -print0 | xargs -0 -r cp --parents --remove-destination --reflink=auto -t $TARGET 2>/dev/null
+  done
+  cd $TARGET
 }
 
 # args: dir language sourcefiles
@@ -41,7 +60,12 @@ function compile {
       ghc -o prog $@ > $BASE/out/$DIR/_compile 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_compile
       ;;
     _Java)
-      javac -cp .:$BASE/use/\* $@ > $BASE/out/$DIR/_compile 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_compile
+      jvmworker compile javac - $BASE/out/$DIR/_compile $COMPILETIMEOUT - - - -cp .:$BASE/use/\* $@
+      case $? in
+        0) (exit $JVM_EXIT) ;; # for the status check below
+        2) compiletimeout ;;
+        *) javac -cp .:$BASE/use/\* $@ > $BASE/out/$DIR/_compile 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_compile ;;
+      esac
       ;;
     _Bash|_JavaScript|_Matlab|_PHP)
       touch $BASE/out/$DIR/_compile
@@ -56,7 +80,13 @@ function compile {
       scalac $@ 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_compile   
       ;;
     _Kotlin)
-       kotlinc $@ 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_compile   
+       KOTLINC=/usr/lib/kotlinc/lib/kotlin-compiler.jar
+       [[ -e $KOTLINC ]] && jvmworker compile kotlinc - $BASE/out/$DIR/_compile $COMPILETIMEOUT $KOTLINC - org.jetbrains.kotlin.cli.jvm.K2JVMCompiler $@
+       case $? in
+         0) (exit $JVM_EXIT) ;; # for the status check below
+         2) compiletimeout ;;
+         *) kotlinc $@ 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_compile ;;
+       esac
        ;;
     _SML)
       polyc -o prog $1 > $BASE/out/$DIR/_compile 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_compile
@@ -72,6 +102,123 @@ function compile {
     mv $BASE/out/$DIR/_compile $BASE/out/$DIR/_errors
     find -name "*.class" -exec rm {} \;
   fi  
+  if [[ -e $BASE/out/$DIR/_errors ]] ; then
+    mkdir -p $BASE/_failed
+    touch $BASE/_failed/$DIR
+  fi
+}
+
+# Reports that a compiler in a JVM worker timed out. The compiler isn't run again
+# in a JVM of its own, since that would take longer than the compile step may.
+function compiletimeout {
+  echo "timeout: the compiler did not complete in $COMPILETIMEOUT seconds" > $BASE/out/$DIR/_compile
+  ID=$DIR marktimeout 124
+  return 124
+}
+
+# args: status
+# Creates out/ID/_timeout if the status is that of timeout -s 9, or 124, the
+# status of a CALL tester when a call timed out. Outputs that depend on the
+# timing of the run aren't cached (see Plan.isCacheable).
+function marktimeout {
+  if [[ $1 == 124 || $1 == 137 ]] ; then
+    touch $BASE/out/$ID/_timeout
+  fi
+}
+
+# args: command arg1 arg2 ...
+# Runs the command as timeout -v -s 9 ${TIMEOUT}s does, and marks the timeout.
+# The shell doesn't report the killed command, since that would go into the output.
+function limited {
+  { timeout -v -s 9 ${TIMEOUT}s "$@" 2>&4 4>&- ; } 4>&2 2>/dev/null
+  local STATUS=$?
+  marktimeout $STATUS
+  return $STATUS
+}
+
+# args: kind command input output timeout libraries classpath class arg1 arg2 ...
+# Has one of the long-lived JVMs of JavaWorker.java run a program (kind run),
+# a Java CALL tester (kind call), or a compiler (kind compile), with the timeout
+# in seconds. Fails if there is no worker, all workers are busy, or the worker
+# didn't complete the request, so that the command can be run in a JVM of its
+# own. The status is 2 if a compiler timed out, or the worker didn't reply in
+# time. Then the command isn't run again (see compiletimeout and workertimeout).
+# After a compile, JVM_EXIT is the exit status of the compiler. After a
+# run, it is 137 or 124 if the program or a call timed out, and 1 if a call exited
+# the JVM.
+function jvmworker {
+  local STATUS
+  [[ -n $JVM_WORKER_PORT ]] || return 1
+  { exec 4<>/dev/tcp/127.0.0.1/$JVM_WORKER_PORT ; } 2>/dev/null || return 1
+  echo "$1 $2 $PWD $3 $4 $MAXOUTPUTLEN $(($5 * 1000)) ${@:6}" >&4
+  read -r -t $(($5 + 10)) STATUS JVM_EXIT <&4
+  (( $? > 128 )) && STATUS=timeout
+  exec 4<&-
+  [[ $STATUS == done ]] && return 0
+  [[ $STATUS == timeout ]] && return 2
+  return 1
+}
+
+# args: command output
+# Reports that a JVM worker or the Python zygote didn't complete a program or CALL
+# tester in time, as timeout -v -s 9 does. It isn't run again in a process of its
+# own, since that would take longer than the run step may.
+function workertimeout {
+  echo "timeout: sending signal KILL to command '$1'" >> $2
+  marktimeout 137
+}
+
+# args: command main arg1 arg2 ...
+# Has the zygote.py process fork a Python program, which is run like the
+# given command would. Fails if there is no zygote or it didn't complete the
+# run, so that the program can be run with python3. The status is 2 if the zygote
+# didn't reply in time. Then the program isn't run again (see workertimeout).
+# PYTHON_EXIT is the exit status of the program, as with timeout -s 9.
+function pythonzygote {
+  local STATUS
+  [[ -n $PYTHON_ZYGOTE_PORT ]] || return 1
+  { exec 4<>/dev/tcp/127.0.0.1/$PYTHON_ZYGOTE_PORT ; } 2>/dev/null || return 1
+  echo "$1 $INTERLEAVEIO $PWD $BASE/in/$ID $BASE/out/$ID/_run $MAXOUTPUTLEN $TIMEOUT ${@:2}" >&4
+  read -r -t $((TIMEOUT + 10)) STATUS PYTHON_EXIT <&4
+  (( $? > 128 )) && STATUS=timeout
+  exec 4<&-
+  [[ $STATUS == done ]] && return 0
+  [[ $STATUS == timeout ]] && return 2
+  return 1
+}
+
+# args: all delimiter timeout maxlines
+# Runs the calls of the Java CALL tester MAIN (see JavaLanguage.writeTester) in a JVM
+# worker or in a JVM of its own. When a call times out or exits the JVM, the tester
+# stops with a non-zero status, and a new tester runs the calls after it, as they would
+# be run in processes of their own, while there is time and output left.
+function javacalls {
+  local TIMEOUT=$TIMEOUT MAXOUTPUTLEN=$MAXOUTPUTLEN FIRST=1 STATUS LAST
+  local END=$((SECONDS + TIMEOUT))
+  local PART=$BASE/out/$ID/_part
+  > $BASE/out/$ID/_run
+  while true ; do
+    if jvmworker call java $BASE/in/$ID $PART $TIMEOUT - ".:$BASE/use/*" ${MAIN/.java/} $@ $FIRST ; then
+      STATUS=${JVM_EXIT:-0}
+      marktimeout $STATUS # executed by a JVM worker
+    elif [[ $? == 2 ]] ; then
+      workertimeout java $PART
+      STATUS=137
+    else
+      limited java -ea -Djava.awt.headless=true -Dcom.horstmann.codecheck -cp .:$BASE/use/\* ${MAIN/.java/} $@ $FIRST < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $PART
+      STATUS=${PIPESTATUS[0]}
+      cat hs_err*log >> $PART 2> /dev/null
+      rm -f hs_err*log
+    fi
+    cat $PART >> $BASE/out/$ID/_run
+    LAST=$(grep -a "^$2 [0-9]*$" $PART | tail -n 1)
+    TIMEOUT=$((END - SECONDS))
+    MAXOUTPUTLEN=$((MAXOUTPUTLEN - $(wc -l < $PART)))
+    [[ $STATUS == 0 || $STATUS == 137 || -z $LAST ]] && break
+    (( TIMEOUT > 0 && MAXOUTPUTLEN > 0 )) || break
+    FIRST=$((${LAST#* } + 1))
+  done
+  rm -f $PART
 }
 
 # args: dir id timeout interleaveio language module arg1 arg2 ...
@@ -92,14 +239,18 @@ function run {
   shift
   cd $BASE/$DIR
   mkdir -p $BASE/out/$ID
+  if [[ -e $BASE/_failed/$DIR ]] ; then
+    touch $BASE/out/$ID/_run
+    return
+  fi
   case _"$LANG" in 
     _C|_Cpp|_Dart|_Haskell|_Rust)
       ulimit -d 100000 -f 1000 -n 100 -v 100000
       if [[ -e prog ]] ; then
         if [[ $INTERLEAVEIO == "true" ]] ; then
-           timeout -v -s 9 ${TIMEOUT}s ${CODECHECK_HOME}/interleaveio.py ./prog $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
+           limited ${CODECHECK_HOME}/interleaveio.py ./prog $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
         else 
-           timeout -v -s 9 ${TIMEOUT}s ./prog $@ < $BASE/in/$ID > $BASE/out/$ID/_run 2>&1
+           limited ./prog $@ < $BASE/in/$ID > $BASE/out/$ID/_run 2>&1
         fi
       fi
       ;;
@@ -107,21 +258,27 @@ function run {
       ulimit -d 1000000 -f 1000 -n 100 -v 1000000
       if [[ -e prog ]] ; then
         if [[ $INTERLEAVEIO == "true" ]] ; then
-           timeout -v -s 9 ${TIMEOUT}s ${CODECHECK_HOME}/interleaveio.py ./prog $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
+           limited ${CODECHECK_HOME}/interleaveio.py ./prog $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
         else 
-           timeout -v -s 9 ${TIMEOUT}s ./prog $@ < $BASE/in/$ID > $BASE/out/$ID/_run 2>&1
+           limited ./prog $@ < $BASE/in/$ID > $BASE/out/$ID/_run 2>&1
         fi
       fi
       ;;
     _Java)
       ulimit -d 1000000 -f 1000 -n 100 -v 10000000
       if [[ -e  ${MAIN/.java/.class} ]] ; then
-        if [[ $INTERLEAVEIO == "true" ]] ; then
-          timeout -v -s 9 ${TIMEOUT}s ${CODECHECK_HOME}/interleaveio.py java -ea -Djava.awt.headless=true -Dcom.horstmann.codecheck -cp .:$BASE/use/\* ${MAIN/.java/} $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
+        if [[ $1 == all ]] ; then
+          javacalls $@
+        elif [[ $INTERLEAVEIO == "true" ]] ; then
+          limited ${CODECHECK_HOME}/interleaveio.py java -ea -Djava.awt.headless=true -Dcom.horstmann.codecheck -cp .:$BASE/use/\* ${MAIN/.java/} $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
           cat hs_err*log >> $BASE/out/$ID/_run 2> /dev/null
           rm -f hs_err*log
+        elif jvmworker run java $BASE/in/$ID $BASE/out/$ID/_run $TIMEOUT - ".:$BASE/use/*" ${MAIN/.java/} $@ ; then
+          marktimeout $JVM_EXIT # executed by a JVM worker
+        elif [[ $? == 2 ]] ; then
+          workertimeout java $BASE/out/$ID/_run
         else
-          timeout -v -s 9 ${TIMEOUT}s java -ea -Djava.awt.headless=true -Dcom.horstmann.codecheck -cp .:$BASE/use/\* ${MAIN/.java/} $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
+          limited java -ea -Djava.awt.headless=true -Dcom.horstmann.codecheck -cp .:$BASE/use/\* ${MAIN/.java/} $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
           cat hs_err*log >> $BASE/out/$ID/_run 2> /dev/null
           rm -f hs_err*log          
         fi
@@ -139,55 +296,74 @@ function run {
         mv $TMPFILE $MAIN
       fi
       chmod +x *.sh
-      timeout -v -s 9 ${TIMEOUT}s bash $MAIN $@  < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN >> $BASE/out/$ID/_run
+      limited bash $MAIN $@  < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN >> $BASE/out/$ID/_run
       cat $BASE/out/$ID/_run
       ;;
     _CSharp)
       ulimit -d 10000 -f 1000 -n 100 -v 100000 
       if [[ -e Prog.exe ]] ; then    
-        timeout -v -s 9 ${TIMEOUT}s mono Prog.exe $@  < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
+        limited mono Prog.exe $@  < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
       fi
       ;;
     _JavaScript)
       # sed -i -e 's/^const //g' *CodeCheck.js # TODO Horrible hack for ancient node version--remove
       # TODO Check if still nodejs or node with Ubuntu 20.04
       ulimit -d 100000 -f 1000 -n 100 -v 1000000      
-      timeout -v -s 9 ${TIMEOUT}s node $MAIN $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run    
+      limited node $MAIN $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run    
       ;;
     _Matlab)
       ulimit -d 10000 -f 1000 -n 100 -v 1000000
-      NO_AT_BRIDGE=1 timeout -v -s 9 ${TIMEOUT}s octave --no-gui $MAIN $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run    
+      NO_AT_BRIDGE=1 limited octave --no-gui $MAIN $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run    
       ;;
      _PHP)
       ulimit -d 10000 -f 1000 -n 100 -v 1000000
-      timeout -v -s 9 ${TIMEOUT}s php $MAIN $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
+      limited php $MAIN $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
       ;;     
     _Python)
       ulimit -d 100000 -f 1000 -n 100 -v 100000
       export CODECHECK=true
       if [[ -n $BASE/out/$DIR/_errors ]] ; then
-        if [[ $INTERLEAVEIO == "true" ]] ; then
-           timeout -v -s 9 ${TIMEOUT}s ${CODECHECK_HOME}/interleaveio.py python3 $MAIN $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
+        if pythonzygote $([[ $INTERLEAVEIO == "true" ]] && echo ${CODECHECK_HOME}/interleaveio.py || echo python3) $MAIN $@ ; then
+           marktimeout $PYTHON_EXIT # forked by the zygote
+        elif [[ $? == 2 ]] ; then
+           workertimeout python3 $BASE/out/$ID/_run
+        elif [[ $INTERLEAVEIO == "true" ]] ; then
+           limited ${CODECHECK_HOME}/interleaveio.py python3 $MAIN $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
         else 
-           timeout -v -s 9 ${TIMEOUT}s python3 $MAIN $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
+           limited python3 $MAIN $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
         fi
       fi
       ;;
     _Racket)
       ulimit -d 1000000 -f 1000 -n 100 -v 1000000
       if grep -qE '\(define\s+\(\s*main\s+' $MAIN ; then
-        timeout -v -s 9 ${TIMEOUT}s racket -tm $MAIN $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN >> $BASE/out/$ID/_run
+        limited racket -tm $MAIN $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN >> $BASE/out/$ID/_run
       else
-        timeout -v -s 9 ${TIMEOUT}s racket -t $MAIN $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN >> $BASE/out/$ID/_run
+        limited racket -t $MAIN $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN >> $BASE/out/$ID/_run
       fi    
       ;;
     _Scala)
       ulimit -d 1000000 -f 1000 -n 100 -v 10000000
-      timeout -v -s 9 ${TIMEOUT}s scala ${MAIN/.scala/} $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
+      SCALALIB=$(dirname "$(readlink -f "$(command -v scala)")")/../lib/scala-library.jar
+      if [[ -e $SCALALIB ]] && jvmworker run scala $BASE/in/$ID $BASE/out/$ID/_run $TIMEOUT $SCALALIB . ${MAIN/.scala/} $@ ; then
+        marktimeout $JVM_EXIT # executed by a JVM worker
+      elif [[ $? == 2 ]] ; then
+        workertimeout scala $BASE/out/$ID/_run
+      else
+        limited scala ${MAIN/.scala/} $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
+      fi
       ;;
     _Kotlin)
       ulimit -d 1000000 -f 1000 -n 100 -v 10000000
-      timeout -v -s 9 ${TIMEOUT}s kotlin ${MAIN/.kt/Kt} $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
+      KOTLINLIB=/usr/lib/kotlinc/lib/kotlin-stdlib.jar
+      if [[ -e /usr/lib/kotlinc/lib/kotlin-reflect.jar ]] ; then KOTLINLIB+=:/usr/lib/kotlinc/lib/kotlin-reflect.jar ; fi
+      if [[ -e /usr/lib/kotlinc/lib/kotlin-stdlib.jar ]] && jvmworker run kotlin $BASE/in/$ID $BASE/out/$ID/_run $TIMEOUT $KOTLINLIB . ${MAIN/.kt/Kt} $@ ; then
+        marktimeout $JVM_EXIT # executed by a JVM worker
+      elif [[ $? == 2 ]] ; then
+        workertimeout kotlin $BASE/out/$ID/_run
+      else
+        limited kotlin ${MAIN/.kt/Kt} $@ < $BASE/in/$ID 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$ID/_run
+      fi
       ;;
     *)  
       echo Unknown language $LANG > $BASE/out/$ID/_run 
@@ -205,6 +381,7 @@ function unittest {
   shift  
   MAIN=$1
   shift
+  ID=$DIR # for marktimeout
   mkdir -p $BASE/$DIR
   mkdir -p $BASE/out/$DIR
   cd $BASE/$DIR
@@ -215,20 +392,20 @@ function unittest {
         mv $BASE/out/$DIR/_compile $BASE/out/$DIR/_errors
       else
         ulimit -d 1000000 -f 1000 -n 100 -v 10000000
-        timeout -v -s 9 ${TIMEOUT}s java -ea -Djava.awt.headless=true -cp .:$BASE/use/\*:$CODECHECK_HOME/lib/\* org.junit.runner.JUnitCore ${MAIN/.java/} 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_run
+        limited java -ea -Djava.awt.headless=true -cp .:$BASE/use/\*:$CODECHECK_HOME/lib/\* org.junit.runner.JUnitCore ${MAIN/.java/} 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_run
       fi
       ;;
     _PHP)
       ulimit -d 100000 -f 1000 -n 100 -v 100000      
-      timeout -v -s 9 ${TIMEOUT}s phpunit $MAIN 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_run      
+      limited phpunit $MAIN 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_run      
       ;;
     _Python)
       ulimit -d 100000 -f 1000 -n 100 -v 100000      
-      timeout -v -s 9 ${TIMEOUT}s python3 -m unittest $MAIN 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_run    
+      limited python3 -m unittest $MAIN 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_run    
       ;;
     _Racket)
       ulimit -d 100000 -f 1000 -n 100 -v 1000000       
-      timeout -v -s 9 ${TIMEOUT}s racket $MAIN 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_run
+      limited racket $MAIN 2>&1 | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_run
       ;;
     _Rust)
       rustc -o prog --test $MAIN >> $BASE/out/$DIR/_compile
@@ -236,7 +413,7 @@ function unittest {
         mv $BASE/out/$DIR/_compile $BASE/out/$DIR/_errors
       else
         ulimit -d 100000 -f 1000 -n 100 -v 100000
-        timeout -v -s 9 ${TIMEOUT}s ./prog | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_run
+        limited ./prog | head --lines $MAXOUTPUTLEN > $BASE/out/$DIR/_run
       fi
       ;;
   esac     
@@ -262,6 +439,7 @@ function process {
 function collect {
   DIR=$1
   shift
+  if [[ -e $BASE/_failed/$DIR ]] ; then return ; fi
   cd $BASE/$DIR
   cp --parents $@ $BASE/out/$DIR
 }
@@ -1,8 +1,359 @@
 const fs = require('fs')
+const os = require('os')
 const http = require('http')
+const path = require('path')
+const net = require('net')
+const crypto = require('crypto')
 const formidable = require('formidable')
 const child_process = require('child_process')
 
+/*
+  Jobs wait in a FIFO queue until one of the workers is free. By default, there is
+  one worker per core, but no more than one per 512 MB of memory. When the queue is full,
+  uploads are rejected with 503 and Retry-After so that the client can go elsewhere.
+  When the client goes away, its job is removed from the queue, or comrun is cancelled
+  with SIGTERM, which kills the job's processes and removes its working directory.
+*/
+const workers = parseInt(process.env.COMRUN_WORKERS) ||
+  Math.max(1, Math.min(os.cpus().length, Math.floor(os.totalmem() / (512 * 1024 * 1024))))
+const capacity = parseInt(process.env.COMRUN_QUEUE) || 4 * workers
+// Each job runs its steps in parallel (see comrun), with its share of the cores
+const jobEnv = { ...process.env,
+  COMRUN_JOBS: process.env.COMRUN_JOBS || Math.max(1, Math.floor(os.cpus().length / workers)) }
+const queue = []
+let active = 0
+let load = 0 // estimated cost of the queued and running jobs, for load balancing
+let meanWait = 0 // milliseconds, exponentially smoothed
+let meanDuration = 0
+let rejected = 0
+let cancelled = 0
+
+/*
+  Files that are the same in many jobs, such as those of the problem, are sent as
+  references to a blob cache (see frames.py). A request with references to blobs that
+  aren't in the cache is answered with 409 and their hashes, and the client sends it
+  again with their contents. The cache holds up to COMRUN_BLOB_CACHE megabytes, and the
+  least recently used blobs are removed, except for those of jobs that haven't started.
+  Only the user of this server can read the cache. comrun copies the blobs of a job into
+  its directory before the COMRUN_USER runs the job, so that a program can't read the
+  files of other problems.
+*/
+const blobDir = process.env.COMRUN_BLOBS || '/tmp/codecheck-blobs'
+const blobCapacity = (parseInt(process.env.COMRUN_BLOB_CACHE) || 1024) * 1024 * 1024
+const blobs = new Map() // hash -> size, least recently used first
+const pinned = new Map() // hash -> number of waiting jobs that reference it
+let blobBytes = 0
+let blobMisses = 0
+const HASH = /^[0-9a-f]{64}$/
+
+fs.mkdirSync(blobDir, { recursive: true, mode: 0o700 })
+fs.chmodSync(blobDir, 0o700)
+for (const entry of fs.readdirSync(blobDir)
+    .filter(name => HASH.test(name))
+    .map(name => ({ name, stat: fs.statSync(path.join(blobDir, name)) }))
+    .sort((a, b) => a.stat.mtimeMs - b.stat.mtimeMs)) {
+  blobs.set(entry.name, entry.stat.size)
+  blobBytes += entry.stat.size
+}
+
+/*
+  Java, Kotlin, and Scala programs and Java CALL testers are executed, and Java and Kotlin
+  sources are compiled, by a pool of long-lived JVMs (see JavaWorker.java), so that they
+  don't pay for starting a JVM and loading the compiler.
+  There are COMRUN_JVM_WORKERS of them (default: one per core, 0 for none). They run as
+  the COMRUN_USER, each in a directory of its own, and each exits after COMRUN_JVM_REQUESTS
+  requests (default 100) or when a request left it in a bad state. Then another one is
+  started. comrun receives in COMRUN_JVM_PORT the port on which requests are accepted.
+  A request that finds all workers busy is answered with busy, and a request whose worker
+  exits without answering gets no answer. In both cases, the program or compiler is run
+  in a JVM of its own. When a client goes away before its answer, as when its job was
+  cancelled, the input of its worker is closed, so that the worker terminates and the request
+  doesn't keep running.
+*/
+const jvmWorkers = parseInt(process.env.COMRUN_JVM_WORKERS ?? os.cpus().length) || 0
+const jvmRequests = parseInt(process.env.COMRUN_JVM_REQUESTS) || 100
+const idleJvms = []
+const jvmClients = [] // waiting for a worker
+let jvmCount = 0
+let jvmStarts = 0
+
+function startJvm() {
+  jvmStarts++
+  const workspaces = process.env.COMRUN_WORKSPACES || '/dev/shm/codecheck'
+  let cwd
+  try {
+    fs.mkdirSync(workspaces, { recursive: true, mode: 0o733 })
+    cwd = fs.mkdtempSync(path.join(workspaces, 'jvm'))
+  } catch (e) {
+    cwd = fs.mkdtempSync(path.join(os.tmpdir(), 'jvm'))
+  }
+  fs.chmodSync(cwd, 0o777)
+  const worker = child_process.spawn('sudo', ['-u', process.env.COMRUN_USER || 'comrunner', 'nice', '-15',
+      'bash', '-c', 'ulimit -d 1000000 -f 1000 -n 100 -v 10000000 && exec java -Djava.awt.headless=true -Dcom.horstmann.codecheck "$0" "$1"',
+      path.join(__dirname, 'JavaWorker.java'), `${jvmRequests}`],
+    { cwd, stdio: ['pipe', 'pipe', 'inherit'] })
+  jvmCount++
+  let lines = ''
+  worker.stdout.on('data', data => {
+    lines += data
+    let eol
+    while ((eol = lines.indexOf('\n')) >= 0) {
+      const line = lines.substring(0, eol)
+      lines = lines.substring(eol + 1)
+      if (line === 'ready') {
+        worker.client = undefined
+        if (worker.retired) continue
+        const client = jvmClients.shift()
+        if (client === undefined) idleJvms.push(worker)
+        else assignJvm(worker, client)
+      } else if (worker.client !== undefined) {
+        worker.client.answered = true
+        worker.client.end(line + '\n')
+      }
+    }
+  })
+  worker.stdin.on('error', () => {})
+  worker.on('error', e => console.log(e))
+  worker.on('close', () => {
+    jvmCount--
+    const index = idleJvms.indexOf(worker)
+    if (index >= 0) idleJvms.splice(index, 1)
+    if (worker.client !== undefined) worker.client.destroy()
+    fs.rm(cwd, { recursive: true, force: true }, () => {})
+    setTimeout(startJvm, 1000)
+  })
+}
+
+function assignJvm(worker, client) {
+  worker.client = client
+  client.on('close', () => {
+    if (worker.client === client && !client.answered) {
+      worker.retired = true
+      worker.stdin.end()
+    }
+  })
+  worker.stdin.write(client.request + '\n')
+}
+
+function startJvmBroker() {
+  const broker = net.createServer(client => {
+    let request = ''
+    client.on('error', () => {})
+    client.on('data', data => {
+      request += data
+      const eol = request.indexOf('\n')
+      if (eol < 0 || client.request !== undefined) return
+      client.request = request.substring(0, eol)
+      const worker = idleJvms.shift()
+      if (worker !== undefined) assignJvm(worker, client)
+      else if (jvmClients.length < jvmCount) {
+        jvmClients.push(client)
+        client.on('close', () => {
+          const index = jvmClients.indexOf(client)
+          if (index >= 0) jvmClients.splice(index, 1)
+        })
+      }
+      else client.end('busy\n')
+    })
+  })
+  broker.listen(0, '127.0.0.1', () => { jobEnv.COMRUN_JVM_PORT = broker.address().port })
+  for (let i = 0; i < jvmWorkers; i++) startJvm()
+}
+
+/*
+  Python programs are forked from a zygote (see zygote.py) that runs as the COMRUN_USER,
+  so that they don't pay for starting the interpreter. comrun receives the port of the
+  zygote in COMRUN_PYTHON_PORT. When the zygote exits, another one is started. Set
+  COMRUN_PYTHON_ZYGOTE to false to run each program with python3.
+*/
+let zygoteStarts = 0
+
+function startZygote() {
+  zygoteStarts++
+  const zygote = child_process.spawn('sudo', ['-u', process.env.COMRUN_USER || 'comrunner', 'nice', '-15',
+      'python3', path.join(__dirname, 'zygote.py')],
+    { cwd: os.tmpdir(), stdio: ['ignore', 'pipe', 'inherit'] })
+  let lines = ''
+  zygote.stdout.on('data', data => {
+    if (jobEnv.COMRUN_PYTHON_PORT === undefined) {
+      lines += data
+      const port = parseInt(lines)
+      if (lines.includes('\n') && port > 0) jobEnv.COMRUN_PYTHON_PORT = port
+    } else process.stderr.write(data)
+  })
+  zygote.on('error', e => console.log(e))
+  zygote.on('exit', () => {
+    delete jobEnv.COMRUN_PYTHON_PORT
+    setTimeout(startZygote, 1000)
+  })
+}
+
+function useBlob(hash) {
+  const size = blobs.get(hash)
+  blobs.delete(hash)
+  blobs.set(hash, size)
+}
+
+function storeBlob(hash, contents) {
+  if (blobs.has(hash)) return useBlob(hash)
+  const temp = path.join(blobDir, `.${hash}.${process.pid}`)
+  fs.writeFileSync(temp, contents, { mode: 0o600 })
+  fs.renameSync(temp, path.join(blobDir, hash))
+  blobs.set(hash, contents.length)
+  blobBytes += contents.length
+  for (const [oldest, size] of blobs) {
+    if (blobBytes <= blobCapacity) break
+    if (pinned.has(oldest)) continue
+    blobs.delete(oldest)
+    blobBytes -= size
+    fs.unlink(path.join(blobDir, oldest), () => {})
+  }
+}
+
+function pin(hashes, delta) {
+  for (const hash of hashes) {
+    const count = (pinned.get(hash) || 0) + delta
+    if (count > 0) pinned.set(hash, count)
+    else pinned.delete(hash)
+  }
+}
+
+// Adds the blobs of a framed request to the cache and returns the referenced hashes,
+// or null if the request is malformed
+function resolveBlobs(body) {
+  const references = []
+  let pos = 0
+  while (pos < body.length) {
+    const eol = body.indexOf(10, pos)
+    if (eol < 0) return null
+    const header = body.toString('utf8', pos, eol)
+    pos = eol + 1
+    const space = header.indexOf(' ')
+    if (space < 0) return null
+    const length = header.substring(0, space)
+    const file = header.substring(space + 1)
+    if (length.startsWith('=')) {
+      if (!HASH.test(length.substring(1))) return null
+      references.push(length.substring(1))
+      continue
+    }
+    const end = pos + parseInt(length)
+    if (!(end <= body.length)) return null
+    if (file.startsWith('=')) {
+      const contents = body.subarray(pos, end)
+      const hash = file.substring(1)
+      if (!HASH.test(hash) || crypto.createHash('sha256').update(contents).digest('hex') !== hash) return null
+      storeBlob(hash, contents)
+    }
+    pos = end
+  }
+  return references
+}
+
+function retryAfter() {
+  return Math.max(1, Math.ceil(meanDuration * (Math.floor(queue.length / workers) + 1) / 1000))
+}
+
+function next() {
+  while (active < workers && queue.length > 0) {
+    const job = queue.shift()
+    active++
+    const started = Date.now()
+    meanWait += 0.1 * (started - job.enqueued - meanWait)
+    runJob(job, () => {
+      if (job.blobs !== undefined) pin(job.blobs, -1)
+      active--
+      load -= job.cost
+      meanDuration += 0.1 * (Date.now() - started - meanDuration)
+      next()
+    })
+  }
+}
+
+// Called when the connection closes, also after the response has been sent
+function cancelJob(job) {
+  if (job.res.writableFinished) return
+  const index = queue.indexOf(job)
+  if (index >= 0) {
+    queue.splice(index, 1)
+    load -= job.cost
+    if (job.blobs !== undefined) pin(job.blobs, -1)
+    cancelled++
+  } else if (job.child !== undefined && job.child.exitCode === null && job.child.signalCode === null) {
+    job.child.kill('SIGTERM')
+    cancelled++
+  }
+}
+
+function enqueue(job) {
+  if (job.res.destroyed) return // The client went away while sending the request
+  if (job.blobs !== undefined) pin(job.blobs, 1)
+  queue.push(job)
+  load += job.cost
+  job.res.on('close', () => cancelJob(job))
+  next()
+}
+
+function runJob(job, done) {
+  if (job.body !== undefined) {
+    streamJob(job, done)
+    return
+  }
+  const res = job.res
+  job.child = child_process.exec(`/opt/codecheck/comrun ${job.path}`, { env: jobEnv }, function(error, stdout, stderr) {
+    done()
+    if (res.destroyed) return // cancelled
+    try {
+      if (error !== null) console.log({error})
+      else if (stderr.length > 0) console.log({stderr})
+      const lines = stdout.split("\n")
+      for (let i = 0; i < lines.length - 2; i++)
+        console.log(lines[i])
+      const out = lines[lines.length - 2]
+      res.writeHead(200, {'Content-disposition': 'attachment filename=out.zip"', 'Content-type': 'application/zip'})
+
+      const stream = fs.createReadStream(out)
+      stream.on('open', function () {
+        stream.pipe(res)
+      })
+
+      stream.on('end', function() {
+        fs.unlink(out, function() { })
+      })
+
+      stream.on('error', function(e) {
+        fs.unlink(out, function() { })
+        console.log(e)
+        res.statusCode = 500
+        res.write(e.message)
+        res.end()
+      })
+    } catch (e) {
+      console.log(e)
+      res.statusCode = 500
+      res.write(e.message)
+      res.end()
+    }
+  })
+}
+
+// Runs comrun with the framed request on stdin and streams the framed outputs to the response
+function streamJob(job, done) {
+  const res = job.res
+  const child = child_process.spawn('/opt/codecheck/comrun', ['-'], { env: jobEnv })
+  job.child = child
+  res.writeHead(200, { 'Content-Type': 'application/octet-stream' })
+  child.stdout.pipe(res)
+  child.stderr.on('data', data => process.stderr.write(data))
+  child.stdin.on('error', e => console.log(e))
+  child.stdin.end(job.body)
+  child.on('error', e => {
+    console.log(e)
+    res.end()
+  })
+  child.on('close', done)
+}
+
 const server = http.createServer((req, res) => {
   if (req.url === '/api/health') {
     child_process.exec('/bin/df / ; /usr/bin/free -h', function(error, stdout, stderr) {
@@ -15,51 +366,56 @@ Swap:          15Gi       8.9Gi       7.1Gi
 
       */
       const regexp = /.*\s+(?<diskfull>[0-9.]+%).*Mem:(?:\s+[0-9.]+(?:B|Ki|Mi|Gi|Ti|Pi)){4}\s+(?<available>[0-9.]+(?:B|Ki|Mi|Gi|Ti|Pi))\s+.*/s
-      const result = regexp.exec(stdout).groups      
+      const now = Date.now()
+      const result = { ...regexp.exec(stdout).groups, load, workers, active, queued: queue.length, capacity, rejected, cancelled,
+        blobs: blobs.size, blobBytes, blobMisses, jvms: jvmCount, idleJvms: idleJvms.length, jvmStarts,
+        pythonZygote: jobEnv.COMRUN_PYTHON_PORT !== undefined, zygoteStarts,
+        meanWait: Math.round(meanWait), meanDuration: Math.round(meanDuration),
+        waits: queue.map(job => now - job.enqueued) }
       res.end(JSON.stringify(result) + '\n')
     })
     res.writeHead(200, { 'Content-Type': 'application/json' })
     return
   }
-  if (req.url === '/api/upload' && req.method.toLowerCase() === 'post') {
+  const url = new URL(req.url, 'http://localhost')
+  const post = req.method.toLowerCase() === 'post'
+  if (post && (url.pathname === '/api/run' || url.pathname === '/api/upload') && queue.length >= capacity) {
+    rejected++
+    res.writeHead(503, { 'Retry-After': retryAfter(), 'Connection': 'close' })
+    res.end('Queue full\n')
+    return
+  }
+  const cost = parseInt(url.searchParams.get('cost')) || 1
+  if (post && url.pathname === '/api/run') {
+    // framed request and response (see frames.py)
+    const chunks = []
+    req.on('data', chunk => chunks.push(chunk))
+    req.on('end', () => {
+      const body = Buffer.concat(chunks)
+      const references = resolveBlobs(body)
+      if (references === null) {
+        res.writeHead(400)
+        res.end('Bad request\n')
+        return
+      }
+      const missing = [...new Set(references.filter(hash => !blobs.has(hash)))]
+      if (missing.length > 0) {
+        blobMisses++
+        res.writeHead(409, { 'Content-Type': 'text/plain' })
+        res.end(missing.join('\n') + '\n')
+        return
+      }
+      for (const hash of references) useBlob(hash)
+      enqueue({ body, blobs: references, res, cost, enqueued: Date.now() })
+    })
+    return
+  }
+  if (post && url.pathname === '/api/upload') {
     // parse a file upload
     const form = formidable({ multiples: false })
     form.parse(req, (err, fields, files) => {
       try {
-        const path = files.job.path
-        child_process.exec(`/opt/codecheck/comrun ${path}`, function(error, stdout, stderr) {
-          try {
-            if (error !== null) console.log({error})
-            else if (stderr.length > 0) console.log({stderr})
-            const lines = stdout.split("\n")
-            for (let i = 0; i < lines.length - 2; i++)
-              console.log(lines[i])
-            const out = lines[lines.length - 2]  
-            res.writeHead(200, {'Content-disposition': 'attachment filename=out.zip"', 'Content-type': 'application/zip'})
-            
-            const stream = fs.createReadStream(out)
-            stream.on('open', function () {
-              stream.pipe(res)
-            })
-
-            stream.on('end', function() {
-              fs.unlink(out, function() { })
-            })
-
-            stream.on('error', function(e) {
-              fs.unlink(out, function() { })
-              console.log(e)
-              res.statusCode = 500
-              res.write(e.message)
-              res.end()
-            })
-          } catch (e) {
-            console.log(e)
-            res.statusCode = 500
-            res.write(e.message)
-            res.end()
-          }
-        })
+        enqueue({ path: files.job.path, res, cost, enqueued: Date.now() })
       } catch (e) {
         console.log(e)
         res.statusCode = 500
@@ -80,7 +436,11 @@ Swap:          15Gi       8.9Gi       7.1Gi
     </form>
   `)
 })
-// TODO env.PORT?
-server.listen(8080, () => {
-  console.log('Server listening on http://localhost:8080/ ...')
+if (jvmWorkers > 0) startJvmBroker()
+if (process.env.COMRUN_PYTHON_ZYGOTE !== 'false') startZygote()
+
+// Set PORT to run several instances on one machine
+const port = process.env.PORT || 8080
+server.listen(port, () => {
+  console.log(`Server listening on http://localhost:${port}/ ...`)
 })
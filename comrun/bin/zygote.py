@@ -0,0 +1,290 @@
+#!/usr/bin/python3
+
+# A fork server for Python programs, so that they don't pay for starting the
+# interpreter and importing the commonly used modules. server.js starts it as
+# the COMRUN_USER. It prints the port on which it accepts requests. Each
+# request is a line
+#
+# command interleaveio dir input output maxlines timeout main arg1 arg2 ...
+#
+# The program main runs in dir as with python3 main arg1 arg2 ... in preload.sh.
+# It reads the input file (interleaved with the output if interleaveio is true,
+# see interleaveio.py), and stdout and stderr go to the output file, which gets
+# at most maxlines lines. The program has the resource limits of preload.sh, and
+# it is killed after timeout seconds, with the message of timeout -v for the
+# given command. When the program has completed, the zygote answers done and
+# its exit status, which is 137 after a timeout, as with timeout -s 9. When the
+# client closes the connection before, the program is killed.
+#
+# Each request is served by a child of the zygote, which forks the program.
+# Modules that the zygote imported and that are shadowed by the files in the
+# program directory are removed before the program runs, and the random
+# generator is reseeded. The program runs a few frames deeper than with
+# python3 main, and the recursion limit is raised by as many frames.
+
+import sys
+
+STARTUP_MODULES = set(sys.modules) # as in a fresh interpreter
+
+import builtins
+import importlib
+import importlib.machinery
+import io
+import os
+import resource
+import signal
+import socket
+import threading
+import time
+import traceback
+import types
+
+import interleaveio
+
+PRELOAD = ['array', 'bisect', 'collections', 'copy', 'csv', 'dataclasses', 'datetime',
+           'decimal', 'enum', 'fractions', 'functools', 'heapq', 'itertools', 'json', 'math',
+           'operator', 'random', 're', 'statistics', 'string', 'textwrap', 'typing']
+
+# as with ulimit -d 100000 -f 1000 -n 100 -v 100000 in preload.sh
+LIMITS = [(resource.RLIMIT_DATA, 100000 * 1024), (resource.RLIMIT_FSIZE, 1000 * 1024),
+          (resource.RLIMIT_NOFILE, 100), (resource.RLIMIT_AS, 100000 * 1024)]
+MAX_OUTPUT_BYTES = 1000 * 1024
+GRACE = 1 # seconds
+
+class Output:
+    """Writes at most maxlines lines into a file, as head --lines does in preload.sh."""
+    def __init__(self, path, maxlines):
+        self.file = open(path, 'wb')
+        self.lines = maxlines
+        self.bytes = MAX_OUTPUT_BYTES
+        self.full = False
+        self.lock = threading.Lock()
+
+    def write(self, data):
+        with self.lock:
+            if self.full:
+                return
+            end = 0
+            while end < len(data) and self.lines > 0 and end < self.bytes:
+                newline = data.find(b'\n', end)
+                end = len(data) if newline < 0 else newline + 1
+                if newline >= 0:
+                    self.lines -= 1
+            end = min(end, self.bytes)
+            self.file.write(data[:end])
+            self.bytes -= end
+            self.full = self.lines == 0 or self.bytes == 0
+
+    def close(self, message=''):
+        """Writes the message and ignores further writes."""
+        self.write(message.encode('utf-8'))
+        with self.lock:
+            self.full = True
+            self.file.close()
+
+class OutputStream(io.RawIOBase):
+    """The output of interleaveio.py, which fails like a pipe when head has exited."""
+    def __init__(self, output):
+        self.output = output
+
+    def writable(self):
+        return True
+
+    def write(self, b):
+        if self.output.full:
+            raise BrokenPipeError()
+        self.output.write(bytes(b))
+        return len(b)
+
+class Program:
+    """A forked program, with the part of the subprocess.Popen API that interleaveio.py uses."""
+    def __init__(self, pid, stdin, stdout):
+        self.pid = pid
+        self.stdin = stdin
+        self.stdout = stdout
+        self.returncode = None
+
+    def poll(self):
+        if self.returncode is None:
+            pid, status = os.waitpid(self.pid, os.WNOHANG)
+            if pid != 0:
+                self.returncode = os.waitstatus_to_exitcode(status)
+        return self.returncode
+
+    def wait(self, deadline=None):
+        while self.poll() is None and (deadline is None or time.monotonic() < deadline):
+            time.sleep(0.01)
+        return self.returncode
+
+    def communicate(self):
+        if self.stdin is not None:
+            try:
+                self.stdin.close()
+            except BrokenPipeError:
+                pass
+        data = self.stdout.read()
+        self.wait()
+        return data, None
+
+def pump(stdout, output):
+    while not output.full:
+        data = stdout.read(65536)
+        if not data:
+            return
+        output.write(data)
+    stdout.close() # as when head exits
+
+def unshadow(directory):
+    names = set()
+    for entry in os.listdir(directory):
+        name, extension = os.path.splitext(entry)
+        if os.path.isdir(os.path.join(directory, entry)):
+            names.add(entry)
+        elif extension in ('.py', '.pyc', '.so'):
+            names.add(name)
+    for module in list(sys.modules):
+        if module.split('.')[0] in names and module not in STARTUP_MODULES:
+            del sys.modules[module]
+
+def execute(directory, stdin, stdout, main, args):
+    """Runs the program in the forked process, and exits it as the interpreter would."""
+    os.setpgid(0, 0)
+    os.dup2(stdin, 0)
+    os.dup2(stdout, 1)
+    os.dup2(stdout, 2)
+    os.close(stdin)
+    os.close(stdout)
+    for limit, value in LIMITS:
+        hard = resource.getrlimit(limit)[1]
+        if hard != resource.RLIM_INFINITY:
+            value = min(value, hard)
+        resource.setrlimit(limit, (value, value))
+    os.chdir(directory)
+    os.environ['CODECHECK'] = 'true'
+    path = os.path.abspath(main)
+    sys.argv = [main] + args
+    sys.path[0] = os.path.dirname(path)
+    unshadow(sys.path[0])
+    if 'random' in sys.modules:
+        sys.modules['random'].seed()
+    main_module = types.ModuleType('__main__')
+    main_module.__file__ = path
+    main_module.__cached__ = None
+    main_module.__loader__ = importlib.machinery.SourceFileLoader('__main__', path)
+    main_module.__builtins__ = builtins
+    sys.modules['__main__'] = main_module
+    depth = 0
+    frame = sys._getframe()
+    while frame is not None:
+        depth += 1
+        frame = frame.f_back
+    sys.setrecursionlimit(sys.getrecursionlimit() + depth + 1) # and exec
+    try:
+        with open(path, 'rb') as f:
+            code = compile(f.read(), path, 'exec')
+        exec(code, main_module.__dict__)
+    except SystemExit:
+        raise
+    except BaseException as e:
+        # As the interpreter, flush stdout and print the traceback without the frames of the zygote
+        try:
+            sys.stdout.flush()
+        except Exception:
+            pass
+        tb = e.__traceback__
+        while tb is not None and tb.tb_frame.f_code.co_filename != path:
+            tb = tb.tb_next
+        traceback.print_exception(type(e), e, tb)
+        sys.exit(1)
+    sys.exit(0)
+
+def watch(conn, pid):
+    """Kills the program when the client closes the connection, as when its job is cancelled.
+    The program runs in a process group of its own, outside the session of comrun."""
+    try:
+        conn.recv(1)
+    except OSError:
+        pass
+    try:
+        os.killpg(pid, signal.SIGKILL)
+    except ProcessLookupError:
+        pass
+    os._exit(0)
+
+def serve(conn):
+    with conn.makefile('r', encoding='utf-8') as f:
+        fields = f.readline().split()
+    command, interleave, directory, input, output = fields[:5]
+    maxlines, timeout = int(fields[5]), int(fields[6])
+    main, args = fields[7], fields[8:]
+    interleave = interleave == 'true'
+    deadline = time.monotonic() + timeout
+    read, write = os.pipe()
+    if interleave:
+        stdin, feed = os.pipe()
+    else:
+        stdin = os.open(input, os.O_RDONLY)
+    pid = os.fork()
+    if pid == 0:
+        conn.close()
+        os.close(read)
+        if interleave:
+            os.close(feed)
+        execute(directory, stdin, write, main, args)
+    os.close(write)
+    os.close(stdin)
+    output = Output(output, maxlines)
+    program = Program(pid, os.fdopen(feed, 'wb', buffering=0) if interleave else None,
+                      os.fdopen(read, 'rb', buffering=0))
+    if interleave:
+        out = io.TextIOWrapper(io.BufferedWriter(OutputStream(output)), encoding='utf8')
+        def run():
+            with open(input) as lines:
+                interleaveio.interleave(program, lines, out)
+            try:
+                out.flush()
+            except BrokenPipeError:
+                pass
+        worker = threading.Thread(target=run, daemon=True)
+    else:
+        worker = threading.Thread(target=pump, args=(program.stdout, output), daemon=True)
+    worker.start()
+    threading.Thread(target=watch, args=(conn, pid), daemon=True).start()
+    worker.join(max(0, deadline - time.monotonic()))
+    completed = not worker.is_alive() and program.wait(deadline) is not None
+    try:
+        os.killpg(pid, signal.SIGKILL) # also any processes that the program left behind
+    except ProcessLookupError:
+        pass
+    if completed:
+        output.close()
+        status = program.returncode if program.returncode >= 0 else 128 - program.returncode
+    else:
+        if not interleave:
+            worker.join(GRACE)
+        # The buffered output of interleaveio.py is lost, as when it is killed
+        output.close(f"timeout: sending signal KILL to command '{command}'\n")
+        status = 128 + signal.SIGKILL
+    conn.sendall(f'done {status}\n'.encode('utf-8'))
+    conn.close()
+    os._exit(0)
+
+def main():
+    for name in PRELOAD:
+        try:
+            importlib.import_module(name)
+        except ImportError:
+            pass
+    listener = socket.create_server(('127.0.0.1', 0), backlog=64)
+    print(listener.getsockname()[1], flush=True)
+    signal.signal(signal.SIGCHLD, signal.SIG_IGN)
+    while True:
+        conn, _ = listener.accept()
+        if os.fork() == 0:
+            listener.close()
+            signal.signal(signal.SIGCHLD, signal.SIG_DFL)
+            serve(conn) # raises SystemExit in the forked program
+        conn.close()
+
+if __name__ == '__main__':
+    main()
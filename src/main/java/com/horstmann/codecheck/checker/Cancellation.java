@@ -0,0 +1,37 @@
+package com.horstmann.codecheck.checker;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Cancels a check from another thread, as when its client went away or a newer check
+ * of the same student for the same problem replaced it. Unlike interrupting the thread
+ * of the check, this only stops waiting for a turn and executing the steps, and not
+ * the I/O of the check, such as loading or saving the problem.
+ */
+public class Cancellation {
+    private final CompletableFuture<Void> cancelled = new CompletableFuture<>();
+
+    public void cancel() {
+        cancelled.complete(null);
+    }
+
+    public boolean isCancelled() {
+        return cancelled.isDone();
+    }
+
+    /**
+     * Runs an action when this is cancelled, on the cancelling thread, or right away
+     * if it already is.
+     */
+    public void onCancel(Runnable action) {
+        cancelled.thenRun(action);
+    }
+
+    /**
+     * @throws CancellationException if this is cancelled
+     */
+    public void check() {
+        if (isCancelled()) throw new CancellationException("The check was cancelled");
+    }
+}
@@ -0,0 +1,379 @@
+package com.horstmann.codecheck.checker;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpTimeoutException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.horstmann.codecheck.language.Language;
+
+/**
+ * The remote comrun services to which jobs are uploaded. The setting
+ * com.horstmann.codecheck.comrun.remote is a list of upload URLs, separated by
+ * commas or white space. Each job goes to the node with the least outstanding work,
+ * as counted by this pool or reported by the node's /api/health, whichever is larger.
+ * Work is measured in the estimated cost of the jobs (see Step.getCost), which
+ * is passed to the node in the cost parameter of the request URL. Jobs are posted
+ * as frames to /api/run, next to /api/upload (see Util.postFramesAsync).
+ * Files of the problem, such as those in use and the inputs, are the same
+ * in many jobs. They are sent as references to the blob cache of the node, and their
+ * contents only when the node asks for them. 
+ * The health of the nodes is polled periodically. A node whose uploads fail
+ * repeatedly, or whose health check fails, is taken out of rotation for a while
+ * (circuit breaking), and then receives a single trial job.
+ * A failed upload is retried on another node. A node whose queue is full answers
+ * with 503 and Retry-After. That is backpressure, not a failure: the node gets no
+ * jobs until then, and the job goes to another node. When all nodes are busy, the
+ * job fails with a BusyException, so that the client can try again later. Optionally, when a job hasn't
+ * completed after com.horstmann.codecheck.comrun.hedge milliseconds, the same job
+ * is sent to a second node and the first response is used.
+ */
+public class ComrunPool {
+    private static final int HEALTH_INTERVAL = 10000; // 10 seconds
+    private static final int HEALTH_TIMEOUT = 5000;
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final int OPEN_MILLIS = 30000;
+    private static final int MAX_DISK_FULL_PERCENT = 95;
+    private static final int MIN_BLOB_SIZE = 1024; // Smaller files aren't worth the round trip when they are missing
+    private static final String REMOTE = "com.horstmann.codecheck.comrun.remote";
+
+    private static Map<String, ComrunPool> pools = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService healthChecker;
+
+    /**
+     * Thrown when all nodes are too busy to take a job.
+     */
+    public static class BusyException extends CodeCheckException {
+        private static final long serialVersionUID = 1L;
+        private int retryAfterSeconds;
+
+        public BusyException(int retryAfterSeconds) {
+            super("All comrun nodes are busy. Try again in " + retryAfterSeconds + " seconds.");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public int getRetryAfterSeconds() { return retryAfterSeconds; }
+    }
+
+    private static class Node {
+        String uploadURL;
+        String runURL;
+        String healthURL;
+        int outstanding; // cost of the jobs that were sent and haven't completed
+        int reportedLoad;
+        int consecutiveFailures;
+        long openUntil; // circuit open until this time, in milliseconds
+        long busyUntil; // no jobs until this time, as requested by Retry-After
+        boolean trialInProgress;
+        long jobs;
+        long failures;
+
+        Node(String uploadURL) {
+            this.uploadURL = uploadURL;
+            String base = uploadURL.endsWith("/api/upload")
+                ? uploadURL.substring(0, uploadURL.length() - "/api/upload".length())
+                : uploadURL.replaceAll("/$", "");
+            runURL = base + "/api/run";
+            healthURL = base + "/api/health";
+        }
+
+        int load() {
+            return Math.max(outstanding, reportedLoad);
+        }
+    }
+
+    private List<Node> nodes = new ArrayList<>();
+    private volatile int hedgeMillis;
+    private long hedgedJobs;
+
+    private ComrunPool(String remoteURLs) {
+        for (String url : remoteURLs.trim().split("[,\\s]+"))
+            nodes.add(new Node(url));
+    }
+
+    /**
+     * Looks up the routing table: com.horstmann.codecheck.comrun.remote.java etc. select
+     * the pool for a language, so that heavy runtimes don't hold up light jobs. Other
+     * languages use the pool of com.horstmann.codecheck.comrun.remote.
+     * @return the upload URLs of the pool for the language, or null if there is none
+     */
+    public static String remoteURLs(ResourceLoader config, Language language) {
+        String urls = config.getProperty(REMOTE + "." + language.getLanguage().toLowerCase());
+        return urls != null ? urls : config.getProperty(REMOTE);
+    }
+
+    /**
+     * @return the number of distinct nodes in the pools of all languages
+     */
+    public static int nodeCount(ResourceLoader config) {
+        Set<String> urls = new HashSet<>();
+        List<String> keys = new ArrayList<>();
+        keys.add(REMOTE);
+        for (Language language : Language.languages) keys.add(REMOTE + "." + language.getLanguage().toLowerCase());
+        for (String key : keys) {
+            String value = config.getProperty(key);
+            if (value != null && !value.isBlank()) urls.addAll(List.of(value.trim().split("[,\\s]+")));
+        }
+        return urls.size();
+    }
+
+    /**
+     * @param remoteURLs the upload URLs of the pool (see remoteURLs)
+     * @return the pool for these URLs, which is shared by all jobs
+     */
+    public static ComrunPool of(String remoteURLs) {
+        return pools.computeIfAbsent(remoteURLs.trim(), urls -> {
+            ComrunPool pool = new ComrunPool(urls);
+            if (pool.nodes.size() > 1) startHealthChecks(pool);
+            return pool;
+        });
+    }
+
+    private static synchronized void startHealthChecks(ComrunPool pool) {
+        if (healthChecker == null)
+            healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "comrun-health");
+                t.setDaemon(true);
+                return t;
+            });
+        healthChecker.scheduleWithFixedDelay(pool::checkHealth, 0, HEALTH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param hedgeMillis the delay after which a job is also sent to a second node,
+     * or 0 for no hedging
+     */
+    public void setHedgeMillis(int hedgeMillis) {
+        this.hedgeMillis = hedgeMillis;
+    }
+
+    /**
+     * Polls the health of all nodes. This also wakes up nodes that have been scaled down.
+     */
+    public void checkHealth() {
+        for (Node node : nodes)
+            Util.httpGetAsync(node.healthURL, HEALTH_TIMEOUT).whenComplete((response, ex) -> {
+                synchronized (this) {
+                    record(node, ex == null);
+                    if (ex != null) return;
+                    try {
+                        JsonNode health = Util.fromJsonString(response);
+                        if (health.has("load")) node.reportedLoad = health.get("load").asInt();
+                        String diskfull = health.has("diskfull") ? health.get("diskfull").asText() : "0%";
+                        if (Double.parseDouble(diskfull.replace("%", "")) > MAX_DISK_FULL_PERCENT)
+                            open(node);
+                    } catch (IOException | RuntimeException e) {
+                        // A node that doesn't report health data is routed by outstanding jobs only
+                    }
+                }
+            });
+    }
+
+    /**
+     * Executes a job on a node of this pool.
+     * @param requestFiles the script and files of the job
+     * @param cost the estimated cost of the job
+     * @param listener receives the outputs as they arrive from the node that responds first
+     * @return the future outputs
+     */
+    public CompletableFuture<Map<Path, byte[]>> execute(Map<Path, byte[]> requestFiles, int cost,
+            BiConsumer<Path, byte[]> listener) {
+        CompletableFuture<Map<Path, byte[]>> result = new CompletableFuture<>();
+        Node first = select(null, cost);
+        if (first == null) {
+            int retryAfter = retryAfterSeconds();
+            result.completeExceptionally(retryAfter > 0 ? new BusyException(retryAfter)
+                : new CodeCheckException("No comrun node available"));
+            return result;
+        }
+        Set<Path> references = blobReferences(requestFiles);
+        AtomicInteger pending = new AtomicInteger(1);
+        AtomicReference<Object> streaming = new AtomicReference<>(); // the attempt whose outputs go to the listener
+        List<CompletableFuture<?>> requests = new ArrayList<>();
+        result.whenComplete((response, ex) -> {
+            synchronized (requests) {
+                for (CompletableFuture<?> request : requests) request.cancel(true);
+            }
+        });
+        execute(first, requestFiles, references, cost, 2, streaming, listener, requests).whenComplete((response, ex) -> complete(result, pending, response, ex));
+        int delay = hedgeMillis;
+        if (delay > 0 && nodes.size() > 1)
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+                if (result.isDone()) return;
+                Node second = select(first, cost);
+                if (second == null) return;
+                synchronized (this) { hedgedJobs++; }
+                pending.incrementAndGet();
+                execute(second, requestFiles, references, cost, 1, streaming, listener, requests).whenComplete((response, ex) -> complete(result, pending, response, ex));
+            });
+        return result;
+    }
+
+    /*
+     * The first response wins. The job fails when all uploads have failed. When the job
+     * is complete or cancelled, the remaining requests are cancelled, so that the loser 
+     * of a hedged job doesn't keep running on its node.
+     */
+    private static void complete(CompletableFuture<Map<Path, byte[]>> result, AtomicInteger pending,
+            Map<Path, byte[]> response, Throwable ex) {
+        if (ex == null) result.complete(response);
+        else if (pending.decrementAndGet() == 0) result.completeExceptionally(ex);
+    }
+
+    /*
+     * Only one attempt passes its outputs to the listener, so that a hedged or retried
+     * job doesn't report the same output twice.
+     */
+    private CompletableFuture<Map<Path, byte[]>> execute(Node node, Map<Path, byte[]> requestFiles, Set<Path> references, int cost, int attempts,
+            AtomicReference<Object> streaming, BiConsumer<Path, byte[]> listener, List<CompletableFuture<?>> requests) {
+        String url = node.runURL + "?cost=" + cost;
+        Object attempt = new Object();
+        CompletableFuture<Map<Path, byte[]>> request = Util.postFramesAsync(url, requestFiles, references, (path, contents) -> {
+                if (streaming.compareAndSet(null, attempt) || streaming.get() == attempt)
+                    listener.accept(path, contents);
+            });
+        synchronized (requests) {
+            requests.add(request);
+        }
+        return request
+            .handle((response, ex) -> {
+                if (ex == null) {
+                    finished(node, cost, true);
+                    return CompletableFuture.completedFuture(response);
+                }
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                if (cause instanceof Util.UnavailableException unavailable) {
+                    busy(node, cost, unavailable.getRetryAfterSeconds());
+                    Node next = attempts > 1 ? select(node, cost) : null;
+                    if (next != null) return execute(next, requestFiles, references, cost, attempts - 1, streaming, listener, requests);
+                    return CompletableFuture.<Map<Path, byte[]>>failedFuture(new BusyException(Math.max(1, retryAfterSeconds())));
+                }
+                String message = cause.getMessage();
+                boolean nodeFailure = message != null && message.startsWith("Status: 5")
+                    || cause instanceof HttpTimeoutException || cause instanceof ConnectException;
+                finished(node, cost, !nodeFailure);
+                Node next = nodeFailure && attempts > 1 ? select(nodes.size() > 1 ? node : null, cost) : null;
+                if (next != null) return execute(next, requestFiles, references, cost, attempts - 1, streaming, listener, requests);
+                return CompletableFuture.<Map<Path, byte[]>>failedFuture(cause);
+            })
+            .thenCompose(f -> f);
+    }
+
+    /*
+     * The files that are not in a submission or solution directory, except for the script,
+     * are sent by reference. The student's files are different in each job, and the solution
+     * is never left in the blob cache of a node, where it would outlive the job.
+     */
+    private static Set<Path> blobReferences(Map<Path, byte[]> requestFiles) {
+        Set<Path> result = new HashSet<>();
+        for (Map.Entry<Path, byte[]> entry : requestFiles.entrySet()) {
+            Path p = entry.getKey();
+            String dir = p.getName(0).toString();
+            if (p.getNameCount() > 1 && !dir.startsWith("submission") && !dir.startsWith("solution")
+                    && entry.getValue().length >= MIN_BLOB_SIZE)
+                result.add(p);
+        }
+        return result;
+    }
+
+    /*
+     * Selects the node with the least load whose circuit is closed, or a node whose circuit
+     * has been open long enough for a trial job, and counts the job as outstanding.
+     * Busy nodes are never selected.
+     */
+    private synchronized Node select(Node excluded, int cost) {
+        long now = System.currentTimeMillis();
+        Node best = null;
+        for (Node node : nodes) {
+            if (node == excluded || node.busyUntil > now) continue;
+            if (node.openUntil > now || node.openUntil > 0 && node.trialInProgress) continue;
+            if (best == null || node.load() < best.load()) best = node;
+        }
+        if (best == null && nodes.size() == 1 && nodes.get(0).busyUntil <= now) best = nodes.get(0); // Nowhere else to go
+        if (best != null) {
+            if (best.openUntil > 0) best.trialInProgress = true;
+            best.outstanding += cost;
+            best.jobs++;
+        }
+        return best;
+    }
+
+    private synchronized void finished(Node node, int cost, boolean ok) {
+        node.outstanding -= cost;
+        node.trialInProgress = false;
+        if (!ok) node.failures++;
+        record(node, ok);
+    }
+
+    /*
+     * A node that answered 503 is neither healthy nor failed.
+     */
+    private synchronized void busy(Node node, int cost, int retryAfterSeconds) {
+        node.outstanding -= cost;
+        node.trialInProgress = false;
+        node.busyUntil = System.currentTimeMillis() + 1000L * retryAfterSeconds;
+    }
+
+    /*
+     * @return the seconds until the first busy node takes jobs again, or 0 if no node is busy
+     */
+    private synchronized int retryAfterSeconds() {
+        long now = System.currentTimeMillis();
+        long millis = Long.MAX_VALUE;
+        for (Node node : nodes)
+            if (node.busyUntil > now) millis = Math.min(millis, node.busyUntil - now);
+        return millis == Long.MAX_VALUE ? 0 : (int) ((millis + 999) / 1000);
+    }
+
+    private void record(Node node, boolean ok) {
+        if (ok) {
+            node.consecutiveFailures = 0;
+            if (!node.trialInProgress && node.openUntil <= System.currentTimeMillis()) node.openUntil = 0;
+        } else {
+            node.consecutiveFailures++;
+            if (node.consecutiveFailures >= FAILURE_THRESHOLD || node.openUntil > 0) open(node);
+        }
+    }
+
+    private void open(Node node) {
+        node.openUntil = System.currentTimeMillis() + OPEN_MILLIS;
+    }
+
+    public synchronized String getStatistics() {
+        StringBuilder result = new StringBuilder();
+        long now = System.currentTimeMillis();
+        for (Node node : nodes) {
+            if (result.length() > 0) result.append(", ");
+            result.append(String.format("%s outstanding=%d reported=%d jobs=%d failures=%d%s%s",
+                node.uploadURL, node.outstanding, node.reportedLoad, node.jobs, node.failures,
+                node.openUntil > now ? " open" : "", node.busyUntil > now ? " busy" : ""));
+        }
+        result.append(" hedged=").append(hedgedJobs);
+        return result.toString();
+    }
+
+    /**
+     * @return the statistics of all pools that have been used, one per line
+     */
+    public static String getAllStatistics() {
+        StringBuilder result = new StringBuilder();
+        for (ComrunPool pool : pools.values())
+            result.append(pool.getStatistics()).append("\n");
+        return result.toString();
+    }
+}
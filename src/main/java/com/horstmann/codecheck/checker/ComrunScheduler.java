@@ -0,0 +1,426 @@
+package com.horstmann.codecheck.checker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Serializes the steps of a plan into a comrun script and executes it, locally or
+ * remotely, without blocking a thread while comrun runs. comrun executes the steps 
+ * of different directories in parallel. With an embedded comrun, the script is
+ * executed in this JVM instead (see EmbeddedComrun).
+ */
+public class ComrunScheduler implements Scheduler {
+    private static Map<String, InFlightJob> inFlightJobs = new ConcurrentHashMap<>();
+    private static AtomicLong coalescedJobs = new AtomicLong();
+    private static final int CANCEL_GRACE_MILLIS = 5000;
+    private static final int STARTUP_MILLIS = 10000; // for unpacking and cleaning up, in addition to the step timeouts
+
+    private String remoteURL;
+    private String scriptCommand;
+    private boolean debug;
+    private EmbeddedComrun embedded;
+
+    public ComrunScheduler(String remoteURL, String scriptCommand, boolean debug) {
+        this.remoteURL = remoteURL;
+        this.scriptCommand = scriptCommand;
+        this.debug = debug;
+    }
+
+    /**
+     * @param embedded the embedded comrun that executes the scripts instead of the local
+     * script command or the remote comrun service
+     */
+    public void setEmbedded(EmbeddedComrun embedded) {
+        this.embedded = embedded;
+    }
+
+    /**
+     * @return the number of jobs that were not executed because an identical job was running
+     */
+    public static long getCoalescedJobs() {
+        return coalescedJobs.get();
+    }
+
+    public CompletableFuture<Map<Path, byte[]>> executeAsync(List<Step> steps, Map<Path, byte[]> files, Map<Path, byte[]> knownOutputs,
+            BiConsumer<Path, byte[]> listener) {
+        Map<Path, byte[]> outputs = new Util.FileMap();
+        Set<Step> needed = neededSteps(steps, knownOutputs);
+        List<Step> neededSteps = new ArrayList<>();
+        for (Step step : steps) {
+            if (needed.contains(step)) neededSteps.add(step);
+            else if (step.getType() == Step.Type.RUN && !hasKnownOutput(step, knownOutputs))
+                outputs.put(Paths.get(step.getArgs().get(0), "_run"), new byte[0]); // short-circuited by failed compile
+        }
+        for (Map.Entry<Path, byte[]> entry : outputs.entrySet())
+            listener.accept(entry.getKey(), entry.getValue());
+        if (neededSteps.isEmpty()) return CompletableFuture.completedFuture(outputs);
+        Map<Path, Path> aliases = new HashMap<>();
+        String script = deduplicate(neededSteps, files, aliases);
+        Map<Path, List<Path>> aliased = new HashMap<>(); // canonical output -> aliases
+        for (Map.Entry<Path, Path> alias : aliases.entrySet())
+            aliased.computeIfAbsent(alias.getValue(), p -> new ArrayList<>()).add(alias.getKey());
+        int cost = 0;
+        int timeout = 0;
+        for (Step step : neededSteps) {
+            cost += step.getCost();
+            timeout += step.getTimeout();
+        }
+        Map<Path, byte[]> requestFiles = new Util.FileMap();
+        requestFiles.putAll(files);
+        requestFiles.put(Paths.get("script"), script.getBytes(StandardCharsets.UTF_8));
+        CompletableFuture<Map<Path, byte[]>> job = executeOnce(requestFiles, Math.max(1, cost), STARTUP_MILLIS + 1000 * timeout, (path, contents) -> {
+            listener.accept(path, contents);
+            for (Path alias : aliased.getOrDefault(path, List.of())) listener.accept(alias, contents);
+        });
+        CompletableFuture<Map<Path, byte[]>> result = job.thenApply(jobOutputs -> {
+            outputs.putAll(jobOutputs);
+            for (Map.Entry<Path, Path> alias : aliases.entrySet()) {
+                byte[] contents = outputs.get(alias.getValue());
+                if (contents != null) outputs.put(alias.getKey(), contents);
+            }
+            return outputs;
+        });
+        Util.cancelWith(result, job);
+        return result;
+    }
+
+    /*
+     * A step is needed if it produces an output that is not known, or if a needed step
+     * depends on it. Steps that depend on a failed compile step are not needed.
+     * A collect step is needed if its run step is needed.
+     */
+    private static Set<Step> neededSteps(List<Step> steps, Map<Path, byte[]> knownOutputs) {
+        Set<Step> needed = new HashSet<>();
+        Map<Step, List<Step>> dependents = new HashMap<>();
+        for (Step step : steps)
+            for (Step d : step.getDependencies())
+                dependents.computeIfAbsent(d, k -> new ArrayList<>()).add(step);
+        for (int i = steps.size() - 1; i >= 0; i--) {
+            Step step = steps.get(i);
+            if (step.getType() == Step.Type.DEBUG
+                    || !step.getOutputs().isEmpty() && step.getType() != Step.Type.COLLECT
+                        && !hasKnownOutput(step, knownOutputs) && !hasFailedCompile(step, knownOutputs))
+                needed.add(step);
+            for (Step d : dependents.getOrDefault(step, List.of()))
+                if (needed.contains(d)) needed.add(step);
+        }
+        for (Step step : steps)
+            if (step.getType() == Step.Type.COLLECT)
+                for (Step d : step.getDependencies())
+                    if (d.getType() == Step.Type.RUN && needed.contains(d)) needed.add(step);
+        return needed;
+    }
+
+    private static boolean hasKnownOutput(Step step, Map<Path, byte[]> knownOutputs) {
+        for (Path p : step.getOutputs())
+            if (knownOutputs.containsKey(p)) return true;
+        return false;
+    }
+
+    /*
+     * A solution compile is also considered failed if the compile of the submission
+     * counterpart failed, because its outputs are only compared with those of the submission.
+     */
+    static boolean hasFailedCompile(Step step, Map<Path, byte[]> knownOutputs) {
+        if (step.getType() == Step.Type.COMPILE) {
+            String dir = step.getDir();
+            return knownOutputs.containsKey(Paths.get(dir, "_errors"))
+                || dir.startsWith("solution") 
+                    && knownOutputs.containsKey(Paths.get(dir.replaceFirst("solution", "submission"), "_errors"));
+        }
+        for (Step d : step.getDependencies())
+            if (hasFailedCompile(d, knownOutputs)) return true;
+        return false;
+    }
+
+    /*
+     * Removes compile and run steps that would produce the same outputs as an earlier step,
+     * such as when the solution is checked as a submission. Each directory has a state, which
+     * is the digest of its files or of the steps that produced it. A compile step whose
+     * directory state and arguments match an earlier one is replaced by a copy of the earlier
+     * directory. A run step that matches an earlier one (including the input) is not executed.
+     * In both cases, the outputs of the earlier step are aliased after execution.
+     * Copies happen in the compile phase, before comrun removes the solution directories,
+     * so that the canonical step can be in either the submission or the solution.
+     */
+    static String deduplicate(List<Step> steps, Map<Path, byte[]> files, Map<Path, Path> aliases) {
+        Map<String, String> dirStates = new HashMap<>();
+        Map<String, String> compiled = new HashMap<>(); // step digest -> dir
+        Map<String, String[]> ran = new HashMap<>(); // step digest -> { dir, id }
+        Map<String, List<Step>> skippedRuns = new HashMap<>(); // dir -> skipped run steps
+        Map<String, String> skippedRunDirs = new HashMap<>(); // dir -> canonical dir of the last skipped run
+        StringBuilder result = new StringBuilder();
+        Step pendingPrepare = null;
+        int stepNumber = 0;
+        for (Step step : steps) {
+            stepNumber++;
+            String dir = step.getDir();
+            List<String> args = step.getArgs();
+            if (pendingPrepare != null && !(step.getType() == Step.Type.COMPILE && pendingPrepare.getDir().equals(dir))) {
+                result.append(pendingPrepare.toScript()).append("\n");
+                pendingPrepare = null;
+            }
+            if (step.getType() == Step.Type.PREPARE) {
+                StringBuilder state = new StringBuilder("prepare");
+                for (String source : args) state.append(" ").append(dirState(dirStates, files, source));
+                dirStates.put(dir, stepDigest(state));
+                pendingPrepare = step;
+            } else if (step.getType() == Step.Type.COMPILE) {
+                String key = stepDigest("compile " + dirState(dirStates, files, dir) + " " + String.join(" ", args));
+                String canonical = compiled.get(key);
+                if (canonical != null && pendingPrepare != null) {
+                    result.append("prepare " + dir + " " + canonical + "\n");
+                    aliases.put(Paths.get(dir, "_compile"), Paths.get(canonical, "_compile"));
+                    aliases.put(Paths.get(dir, "_errors"), Paths.get(canonical, "_errors"));
+                } else {
+                    if (pendingPrepare != null) result.append(pendingPrepare.toScript()).append("\n");
+                    result.append(step.toScript()).append("\n");
+                    compiled.putIfAbsent(key, dir);
+                }
+                pendingPrepare = null;
+                dirStates.put(dir, key);
+            } else if (step.getType() == Step.Type.RUN) {
+                String id = args.get(0);
+                byte[] input = step.getInput() == null ? null : files.get(step.getInput());
+                String key = stepDigest("run " + dirState(dirStates, files, dir) + " "
+                    + String.join(" ", args.subList(1, args.size()))
+                    + " " + Util.digest(input == null ? new byte[0] : input));
+                dirStates.put(dir, key); // The program may have changed the directory
+                String[] canonical = ran.get(key);
+                if (canonical != null) {
+                    aliases.put(Paths.get(id, "_run"), Paths.get(canonical[1], "_run"));
+                    skippedRuns.computeIfAbsent(dir, d -> new ArrayList<>()).add(step);
+                    skippedRunDirs.put(dir, canonical[0]);
+                } else {
+                    flushSkippedRuns(skippedRuns, skippedRunDirs, dir, result);
+                    result.append(step.toScript()).append("\n");
+                    ran.put(key, new String[] { dir, id });
+                }
+            } else if (step.getType() == Step.Type.COLLECT && skippedRunDirs.containsKey(dir)) {
+                for (String file : args)
+                    aliases.put(Paths.get(dir, file), Paths.get(skippedRunDirs.get(dir), file));
+            } else {
+                if (dir != null) {
+                    flushSkippedRuns(skippedRuns, skippedRunDirs, dir, result);
+                    dirStates.put(dir, "#" + stepNumber); // Never matches a digest
+                }
+                result.append(step.toScript()).append("\n");
+            }
+        }
+        if (pendingPrepare != null) result.append(pendingPrepare.toScript()).append("\n");
+        return result.toString();
+    }
+
+    /*
+     * A step that is not a duplicate needs the effects of the skipped runs in its directory.
+     * Their outputs are still taken from the canonical runs.
+     */
+    private static void flushSkippedRuns(Map<String, List<Step>> skippedRuns, Map<String, String> skippedRunDirs,
+            String dir, StringBuilder result) {
+        List<Step> runs = skippedRuns.remove(dir);
+        if (runs != null) for (Step run : runs) result.append(run.toScript()).append("\n");
+        skippedRunDirs.remove(dir);
+    }
+
+    private static String dirState(Map<String, String> dirStates, Map<Path, byte[]> files, String dir) {
+        return dirStates.computeIfAbsent(dir, d -> {
+            Map<Path, byte[]> dirFiles = new HashMap<>();
+            for (Map.Entry<Path, byte[]> entry : files.entrySet()) {
+                Path p = entry.getKey();
+                if (p.getNameCount() > 1 && p.getName(0).toString().equals(d))
+                    dirFiles.put(p.subpath(1, p.getNameCount()), entry.getValue());
+            }
+            return Util.digest(dirFiles);
+        });
+    }
+
+    private static String stepDigest(CharSequence step) {
+        return Util.digest(step.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * A job that is shared by callers with identical requests. It is cancelled when
+     * all of its callers have cancelled.
+     */
+    private static class InFlightJob {
+        CompletableFuture<Map<Path, byte[]>> outputs = new CompletableFuture<>();
+        CompletableFuture<Map<Path, byte[]>> execution;
+        int callers = 1;
+
+        synchronized boolean addCaller() {
+            if (callers == 0) return false; // being cancelled
+            callers++;
+            return true;
+        }
+
+        synchronized void setExecution(CompletableFuture<Map<Path, byte[]>> execution) {
+            this.execution = execution;
+            if (callers == 0) execution.cancel(true);
+        }
+
+        /*
+         * Each caller gets its own future, so that cancelling it doesn't affect the others.
+         */
+        CompletableFuture<Map<Path, byte[]>> newCaller(Runnable onCancel) {
+            CompletableFuture<Map<Path, byte[]>> caller = new CompletableFuture<>();
+            outputs.whenComplete((result, ex) -> {
+                if (ex == null) caller.complete(result);
+                else caller.completeExceptionally(ex);
+            });
+            caller.whenComplete((result, ex) -> {
+                if (!caller.isCancelled()) return;
+                boolean last;
+                synchronized (this) {
+                    last = --callers == 0;
+                    if (last && execution != null) execution.cancel(true);
+                }
+                if (last) onCancel.run();
+            });
+            return caller;
+        }
+    }
+
+    /*
+     * Identical jobs that are executed at the same time (e.g. a double-click, or a class
+     * working on the same problem) are only sent to comrun once. The key is the digest of
+     * the request files. Only the first caller receives the outputs as they arrive.
+     */
+    private CompletableFuture<Map<Path, byte[]>> executeOnce(Map<Path, byte[]> requestFiles, int cost, int millis,
+            BiConsumer<Path, byte[]> listener) {
+        boolean remote = remoteURL != null && !remoteURL.isEmpty();
+        String key = (embedded != null ? "embedded" : remote ? remoteURL : scriptCommand) + " " + Util.digest(requestFiles);
+        InFlightJob[] created = new InFlightJob[1];
+        InFlightJob job = inFlightJobs.compute(key, (k, running) -> 
+            running != null && running.addCaller() ? running : (created[0] = new InFlightJob()));
+        CompletableFuture<Map<Path, byte[]>> caller = job.newCaller(() -> inFlightJobs.remove(key, job));
+        if (job != created[0]) {
+            coalescedJobs.incrementAndGet();
+            return caller;
+        }
+        CompletableFuture<Map<Path, byte[]>> result;
+        try {
+            if (embedded != null) result = embedded.execute(requestFiles, listener);
+            else if (remote) result = executeRemotely(requestFiles, cost, millis, listener);
+            else result = executeLocally(requestFiles, millis, listener);
+        } catch (IOException | RuntimeException ex) {
+            result = CompletableFuture.failedFuture(ex);
+        }
+        job.setExecution(result);
+        result.whenComplete((outputs, ex) -> {
+            inFlightJobs.remove(key, job);
+            if (ex == null) job.outputs.complete(outputs);
+            else job.outputs.completeExceptionally(ex);
+        });
+        return caller;
+    }
+
+    /*
+     * Runs comrun with the request frames on stdin and reads the response frames from stdout,
+     * without temporary files. comrun is cancelled when it takes longer than the given time, 
+     * which allows for all steps running one after another up to their timeouts.
+     */
+    private CompletableFuture<Map<Path, byte[]>> executeLocally(Map<Path, byte[]> requestFiles, int millis,
+            BiConsumer<Path, byte[]> listener) throws IOException {
+        List<String> command = new ArrayList<>(List.of(scriptCommand.trim().split("\\s+")));
+        command.add("-");
+        Process process = new ProcessBuilder(command).start();
+        Thread.ofVirtual().start(() -> {
+            try (OutputStream in = process.getOutputStream()) {
+                Util.writeFrames(requestFiles, in);
+            } catch (IOException ex) {
+                // comrun exited early, which is reported when reading its output
+            }
+        });
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        Thread.ofVirtual().start(() -> {
+            try (InputStream err = process.getErrorStream()) {
+                err.transferTo(errors);
+            } catch (IOException ex) {
+                // ignore
+            }
+        });
+        CompletableFuture<Map<Path, byte[]>> result = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> {
+            try (InputStream out = process.getInputStream()) {
+                Map<Path, byte[]> outputs = new Util.FileMap();
+                Util.readFrames(out, (path, contents) -> {
+                    outputs.put(path, contents);
+                    if (!result.isDone()) listener.accept(path, contents);
+                });
+                result.complete(outputs);
+            } catch (IOException ex) {
+                try {
+                    process.waitFor(1, TimeUnit.SECONDS);
+                } catch (InterruptedException iex) {
+                    // report what we have
+                }
+                result.completeExceptionally(new CodeCheckException("comrun failed.\n" + ex.getMessage() + "\n" + errors));
+            }
+            if (debug) System.out.println(errors);
+        });
+        CompletableFuture.delayedExecutor(millis, TimeUnit.MILLISECONDS).execute(() -> {
+            if (result.completeExceptionally(new CodeCheckException("comrun failed.\nTimeout after " + millis + " milliseconds\n" + errors)))
+                cancel(process);
+        });
+        result.whenComplete((outputs, ex) -> { if (result.isCancelled()) cancel(process); });
+        return result;
+    }
+
+    /*
+     * On SIGTERM, comrun kills the processes of the job and removes its working directory.
+     * If it hasn't exited after a grace period, it is killed.
+     */
+    private static void cancel(Process process) {
+        process.destroy();
+        CompletableFuture.delayedExecutor(CANCEL_GRACE_MILLIS, TimeUnit.MILLISECONDS).execute(() -> {
+            if (process.isAlive()) process.destroyForcibly();
+        });
+    }
+
+    /*
+     * The HTTP timeout only covers the response headers, which a node sends when it starts
+     * the job. As with executeLocally, the job fails when it takes longer than the given
+     * time, and completing it cancels the requests to the nodes.
+     */
+    private CompletableFuture<Map<Path, byte[]>> executeRemotely(Map<Path, byte[]> requestFiles, int cost, int millis,
+            BiConsumer<Path, byte[]> listener) {
+        CompletableFuture<Map<Path, byte[]>> job = ComrunPool.of(remoteURL).execute(requestFiles, cost, listener);
+        CompletableFuture.delayedExecutor(millis, TimeUnit.MILLISECONDS).execute(() ->
+            job.completeExceptionally(new CodeCheckException("comrun failed.\nTimeout after " + millis + " milliseconds\n")));
+        CompletableFuture<Map<Path, byte[]>> result = job.thenApply(outputs -> {
+            if (debug) {
+                try {
+                    Path temp = Files.createTempFile("codecheck-request", ".zip");
+                    System.out.println("Remote request at " + temp);
+                    Files.write(temp, Util.zip(requestFiles));
+                    temp = Paths.get(temp.toString().replace("request",  "response"));
+                    System.out.println("Remote result at " + temp);
+                    Files.write(temp, Util.zip(outputs));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+            return outputs;
+        });
+        Util.cancelWith(result, job);
+        return result;
+    }
+}
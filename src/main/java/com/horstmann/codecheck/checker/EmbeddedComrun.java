@@ -0,0 +1,445 @@
+package com.horstmann.codecheck.checker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Executes comrun scripts in this JVM, for single-box deployments. The instructions
+ * are executed like comrun/bin/comrun does it: in the same phases, with the instructions
+ * of a directory as one job, except for the runs in a directory without collect
+ * instructions, which are jobs of their own, and the jobs of a phase on a bounded executor
+ * that is shared by all checks. Each job runs preload.sh as the COMRUN_USER, with sudo, so that
+ * the languages are compiled and run in the same way as by comrun. The setting
+ * com.horstmann.codecheck.comrun.embedded is the directory of comrun, with preload.sh,
+ * frames.py, interleaveio.py, and the lib directory (such as /opt/codecheck). The environment
+ * variables COMRUN_USER, COMRUN_WORKSPACES, and COMRUN_QUOTA have the same meaning and defaults
+ * as for comrun. The long-lived JVMs and the Python zygote of server.js are not used, and
+ * each program is started in a process of its own.
+ */
+public class EmbeddedComrun {
+    private static final int SUDO_CHECK_SECONDS = 10;
+    private static final int KILL_ROUNDS = 3; // as in killsession of comrun
+
+    private static Map<String, EmbeddedComrun> instances = new ConcurrentHashMap<>();
+
+    private Path home;
+    private String user;
+    private Path workspaces;
+    private long quota; // kilobytes per job
+    private ExecutorService executor;
+
+    private EmbeddedComrun(Path home, int jobs) {
+        this.home = home;
+        user = getenv("COMRUN_USER", "comrunner");
+        workspaces = Paths.get(getenv("COMRUN_WORKSPACES", "/dev/shm/codecheck"));
+        quota = Long.parseLong(getenv("COMRUN_QUOTA", "100000"));
+        checkSudo(user);
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(jobs, r -> {
+            Thread t = new Thread(r, "comrun-embedded-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param home the value of com.horstmann.codecheck.comrun.embedded
+     * @param jobs the number of directory jobs that are executed at the same time, or 0
+     * for the number of processors
+     * @return the instance for these settings, which is shared by all checks
+     * @throws CodeCheckException if this server can't run commands as the COMRUN_USER
+     */
+    public static EmbeddedComrun of(String home, int jobs) {
+        int n = jobs > 0 ? jobs : Runtime.getRuntime().availableProcessors();
+        return instances.computeIfAbsent(home.trim() + " " + n, key -> new EmbeddedComrun(Paths.get(home.trim()), n));
+    }
+
+    private static String getenv(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    /*
+     * The programs must not run as the user of the server, which can read its configuration
+     * and credentials. Without sudo, the embedded comrun is not enabled.
+     */
+    private static void checkSudo(String user) {
+        try {
+            ProcessBuilder builder = new ProcessBuilder("sudo", "-n", "-u", user, "true")
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            restrictEnvironment(builder);
+            Process process = builder.start();
+            if (process.waitFor(SUDO_CHECK_SECONDS, TimeUnit.SECONDS) && process.exitValue() == 0) return;
+            process.destroyForcibly();
+        } catch (IOException ex) {
+            // No sudo
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        throw new CodeCheckException("The embedded comrun needs to run programs as " + user + " with sudo -n -u " + user);
+    }
+
+    /*
+     * The working directory of a job, with the running processes.
+     */
+    private static class Job {
+        Path base;
+        Map<Path, byte[]> outputs = new Util.FileMap();
+        BiConsumer<Path, byte[]> listener;
+        Set<Process> processes = ConcurrentHashMap.newKeySet();
+        boolean debug;
+        volatile boolean cancelled;
+    }
+
+    /**
+     * Executes a comrun job.
+     * @param requestFiles the script and files of the job
+     * @param listener receives the outputs of each directory job when it has completed
+     * @return the future outputs. Cancelling it kills the processes of the job.
+     */
+    public CompletableFuture<Map<Path, byte[]>> execute(Map<Path, byte[]> requestFiles, BiConsumer<Path, byte[]> listener) {
+        CompletableFuture<Map<Path, byte[]>> result = new CompletableFuture<>();
+        Job job = new Job();
+        job.listener = (path, contents) -> { if (!result.isDone()) listener.accept(path, contents); };
+        List<List<String>> compile = new ArrayList<>();
+        List<List<String>> runSolution = new ArrayList<>();
+        List<List<String>> runSubmission = new ArrayList<>();
+        try {
+            Map<Path, byte[]> files = new Util.FileMap();
+            for (Map.Entry<Path, byte[]> entry : requestFiles.entrySet())
+                if (!entry.getKey().toString().equals("script")) files.put(entry.getKey(), entry.getValue());
+            byte[] script = requestFiles.get(Paths.get("script"));
+            for (String line : new String(script == null ? new byte[0] : script, StandardCharsets.UTF_8).split("\n")) {
+                List<String> args = List.of(line.trim().split("\\s+"));
+                String instruction = args.get(0);
+                if (instruction.equals("debug")) job.debug = true;
+                if (args.size() < 2) continue;
+                boolean solution = args.get(1).startsWith("solution");
+                if (instruction.equals("prepare") || instruction.equals("compile") || instruction.equals("process"))
+                    compile.add(args);
+                else if (solution && (instruction.equals("run") || instruction.equals("collect")))
+                    runSolution.add(args);
+                else if (instruction.equals("run") || instruction.equals("collect") || instruction.equals("unittest"))
+                    runSubmission.add(args);
+            }
+            job.base = createWorkDir();
+            Files.createDirectory(job.base.resolve("_jobs"));
+            // As in comrun, the files are unpacked by the COMRUN_USER, and the files in use are shared
+            int exitValue = execute(job, List.of("sudo", "-n", "-u", user, "bash", "-c",
+                "\"$0\"/frames.py unpack && if [[ -d use ]] ; then find use -type f -exec chmod a-w {} + ; fi",
+                home.toString()), Util.frames(files));
+            if (exitValue != 0) throw new IOException("Cannot unpack the files of the job");
+        } catch (IOException | RuntimeException ex) {
+            if (job.base != null) reclaim(job);
+            result.completeExceptionally(ex);
+            return result;
+        }
+        if (job.debug) System.err.println("Embedded comrun working directory " + job.base);
+        result.whenComplete((outputs, ex) -> { if (result.isCancelled()) cancel(job); });
+        List<String> tool = List.of("sudo", "-n", "-u", user);
+        List<String> program = List.of("sudo", "-n", "-u", user, "nice", "-15");
+        runPhase(job, "compile", compile, tool)
+            .thenCompose(v -> runPhase(job, "runsolution", runSolution, program))
+            .thenRun(() -> {
+                if (job.debug) return;
+                try {
+                    execute(job, List.of("sudo", "-n", "-u", user, "bash", "-c", "rm -rf solution*"), null);
+                    try (DirectoryStream<Path> jobFiles = Files.newDirectoryStream(job.base.resolve("_jobs"), "runsolution-*")) {
+                        for (Path jobFile : jobFiles) Files.delete(jobFile);
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            })
+            .thenCompose(v -> runPhase(job, "runsubmission", runSubmission, program))
+            .whenComplete((v, ex) -> {
+                Throwable failure = ex == null || ex.getCause() == null ? ex : ex.getCause();
+                if (failure == null) {
+                    try {
+                        sendOutputs(job, job.base.resolve("out"));
+                    } catch (IOException ioex) {
+                        failure = ioex;
+                    }
+                }
+                // The outputs have been read, and the caller need not wait for the cleanup
+                if (!job.debug) Thread.ofVirtual().start(() -> reclaim(job));
+                if (failure == null) {
+                    synchronized (job) {
+                        result.complete(job.outputs);
+                    }
+                } else
+                    result.completeExceptionally(new CodeCheckException("comrun failed.\n" + failure.getMessage()));
+            });
+        return result;
+    }
+
+    /*
+     * Working directories are in memory, in the same place as those of comrun, if there
+     * is room for the quota of this job and of each other job there. Otherwise, they are
+     * in the temporary directory. As in comrun, the COMRUN_USER can write to them.
+     */
+    private Path createWorkDir() throws IOException {
+        Path result = null;
+        try {
+            Files.createDirectories(workspaces);
+            long running;
+            try (Stream<Path> dirs = Files.list(workspaces)) {
+                running = dirs.filter(p -> p.getFileName().toString().startsWith("work")).count();
+            }
+            if (Files.getFileStore(workspaces).getUsableSpace() >= quota * 1024 * (running + 1))
+                result = Files.createTempDirectory(workspaces, "work");
+        } catch (IOException ex) {
+            // No memory file system
+        }
+        if (result == null) result = Files.createTempDirectory("codecheck-work");
+        Files.setPosixFilePermissions(result, PosixFilePermissions.fromString("rwxrwxrwx"));
+        return result;
+    }
+
+    /*
+     * The instructions of each directory are one job. A run in a directory without collect
+     * instructions is independent of the other runs there. As in comrun, it is a job of its
+     * own, in a copy of the directory that is named by the run ID. A job that prepares its
+     * directory from the directory of another job in the same phase is at a higher level and
+     * starts after the lower levels have completed.
+     */
+    private CompletableFuture<Void> runPhase(Job job, String phase, List<List<String>> instructions, List<String> prefix) {
+        Set<String> collects = new HashSet<>();
+        for (List<String> args : instructions)
+            if (args.get(0).equals("collect")) collects.add(args.get(1));
+        Map<String, List<List<String>>> dirJobs = new LinkedHashMap<>();
+        Map<String, Integer> levels = new LinkedHashMap<>();
+        int maxLevel = 0;
+        for (List<String> args : instructions) {
+            String dir = args.get(1);
+            String name = args.get(0).equals("run") && !collects.contains(dir) ? args.get(2) : dir;
+            levels.putIfAbsent(name, 0);
+            if (args.get(0).equals("prepare"))
+                for (String source : args.subList(2, args.size()))
+                    if (!source.equals(dir) && levels.containsKey(source) && levels.get(source) >= levels.get(dir)) {
+                        levels.put(dir, levels.get(source) + 1);
+                        maxLevel = Math.max(maxLevel, levels.get(dir));
+                    }
+            List<List<String>> dirJob = dirJobs.computeIfAbsent(name, d -> new ArrayList<>());
+            if (name.equals(dir)) dirJob.add(args);
+            else {
+                dirJob.add(List.of("prepare", name, dir));
+                List<String> run = new ArrayList<>(args);
+                run.set(1, name);
+                dirJob.add(run);
+            }
+        }
+        CompletableFuture<Void> result = CompletableFuture.completedFuture(null);
+        for (int level = 0; level <= maxLevel; level++) {
+            int l = level;
+            result = result.thenCompose(v -> {
+                List<CompletableFuture<Void>> running = new ArrayList<>();
+                for (Map.Entry<String, List<List<String>>> entry : dirJobs.entrySet())
+                    if (levels.get(entry.getKey()) == l)
+                        running.add(CompletableFuture.runAsync(() ->
+                            runDirJob(job, phase + "-" + entry.getKey(), entry.getValue(), prefix), executor));
+                return CompletableFuture.allOf(running.toArray(CompletableFuture[]::new));
+            });
+        }
+        return result;
+    }
+
+    /*
+     * As in comrun, the job is a copy of preload.sh, followed by the instructions, which
+     * call the functions of preload.sh.
+     */
+    private void runDirJob(Job job, String name, List<List<String>> instructions, List<String> prefix) {
+        List<Path> outs = new ArrayList<>();
+        try {
+            if (job.cancelled) throw new IOException("Cancelled");
+            Path jobFile = resolve(job.base.resolve("_jobs"), name);
+            StringBuilder lines = new StringBuilder();
+            lines.append("CODECHECK_HOME=").append(home).append("\n");
+            for (List<String> args : instructions) {
+                lines.append(String.join(" ", args)).append("\n");
+                Path out = resolve(job.base.resolve("out"), args.get(0).equals("run") ? args.get(2) : args.get(1));
+                if (!outs.contains(out)) outs.add(out);
+            }
+            Files.write(jobFile, Files.readAllBytes(home.resolve("preload.sh")));
+            Files.writeString(jobFile, lines, StandardOpenOption.APPEND);
+            Files.setPosixFilePermissions(jobFile, PosixFilePermissions.fromString("rwxr-xr-x"));
+            List<String> command = new ArrayList<>(prefix);
+            command.add("./_jobs/" + jobFile.getFileName());
+            execute(job, command, null);
+            for (Path out : outs) sendOutputs(job, out);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /*
+     * Reports the files below the given directory that have not been reported before
+     */
+    private static void sendOutputs(Job job, Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) return;
+        Path out = job.base.resolve("out");
+        Map<Path, byte[]> files = Util.descendantFiles(dir);
+        for (Map.Entry<Path, byte[]> entry : files.entrySet()) {
+            Path path = out.relativize(dir.resolve(entry.getKey()));
+            synchronized (job) {
+                if (Arrays.equals(job.outputs.get(path), entry.getValue())) continue;
+                job.outputs.put(path, entry.getValue());
+            }
+            job.listener.accept(path, entry.getValue());
+        }
+    }
+
+    /*
+     * Runs a command in the working directory of the job, in a session of its own, so that
+     * its processes can be found when the job is cancelled.
+     * @param frames the input of the command, or null for none
+     * @return the exit value
+     */
+    private int execute(Job job, List<String> command, List<byte[]> frames) throws IOException {
+        Process process = start(job, command);
+        job.processes.add(process);
+        try {
+            if (job.cancelled) kill(process);
+            try (OutputStream in = process.getOutputStream()) {
+                if (frames != null) for (byte[] frame : frames) in.write(frame);
+            } catch (IOException ex) {
+                // The command exited without reading its input
+            }
+            int exitValue = process.waitFor();
+            if (job.cancelled) throw new IOException("Cancelled");
+            return exitValue;
+        } catch (InterruptedException ex) {
+            kill(process);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } finally {
+            job.processes.remove(process);
+        }
+    }
+
+    /*
+     * The environment of the server is not passed on. The output of the command goes to
+     * the log in debug mode.
+     */
+    private static Process start(Job job, List<String> command) throws IOException {
+        List<String> session = new ArrayList<>();
+        session.add("setsid");
+        session.addAll(command);
+        ProcessBuilder builder = new ProcessBuilder(session).directory(job.base.toFile()).redirectErrorStream(true)
+            .redirectOutput(job.debug ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.DISCARD);
+        restrictEnvironment(builder);
+        return builder.start();
+    }
+
+    private static void restrictEnvironment(ProcessBuilder builder) {
+        Map<String, String> env = builder.environment();
+        Map<String, String> kept = new LinkedHashMap<>();
+        kept.put("PATH", env.getOrDefault("PATH", "/usr/bin:/bin"));
+        for (String name : List.of("HOME", "LANG"))
+            if (env.containsKey(name)) kept.put(name, env.get(name));
+        env.clear();
+        env.putAll(kept);
+    }
+
+    private void cancel(Job job) {
+        job.cancelled = true;
+        for (Process process : job.processes) kill(process);
+    }
+
+    /*
+     * Kills the processes in the session of a command, as comrun does when it is cancelled.
+     * They include the programs that run in their own process groups under timeout, and
+     * those that are no longer descendants of the command. They run as the COMRUN_USER,
+     * and sudo runs as root, so they are killed with sudo.
+     */
+    private void kill(Process process) {
+        for (int round = 0; round < KILL_ROUNDS; round++) {
+            List<String> pids = session(process.pid());
+            if (pids.isEmpty()) return;
+            List<String> command = new ArrayList<>(List.of("sudo", "-n", "-u", user, "kill", "-KILL"));
+            command.addAll(pids);
+            try {
+                ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD);
+                restrictEnvironment(builder);
+                builder.start().waitFor(SUDO_CHECK_SECONDS, TimeUnit.SECONDS);
+            } catch (IOException ex) {
+                // Kill those of this user below
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            for (String pid : pids) ProcessHandle.of(Long.parseLong(pid)).ifPresent(ProcessHandle::destroyForcibly);
+        }
+    }
+
+    /*
+     * The processes in the session with the given id, from the fourth field after the
+     * command name in /proc/pid/stat
+     */
+    private static List<String> session(long sid) {
+        List<String> result = new ArrayList<>();
+        try (DirectoryStream<Path> processes = Files.newDirectoryStream(Paths.get("/proc"), "[0-9]*")) {
+            for (Path p : processes) {
+                try {
+                    String stat = Files.readString(p.resolve("stat"));
+                    String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                    if (Long.parseLong(fields[3]) == sid) result.add(p.getFileName().toString());
+                } catch (IOException | RuntimeException ex) {
+                    // The process has exited
+                }
+            }
+        } catch (IOException ex) {
+            // No /proc
+        }
+        return result;
+    }
+
+    /*
+     * The files of the COMRUN_USER are removed with sudo, and then the working directory
+     */
+    private void reclaim(Job job) {
+        try {
+            Process process = start(job, List.of("sudo", "-n", "-u", user, "bash", "-c", "rm -rf \"$0\"/*", job.base.toString()));
+            process.getOutputStream().close();
+            process.waitFor();
+            Util.deleteDirectory(job.base);
+        } catch (IOException ex) {
+            System.getLogger("com.horstmann.codecheck").log(System.Logger.Level.WARNING, "Cannot delete " + job.base, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Resolves a path from the request, which must stay inside the given directory
+     */
+    private static Path resolve(Path dir, String path) throws IOException {
+        Path result = dir.resolve(path).normalize();
+        if (!result.startsWith(dir) || result.equals(dir)) throw new IOException("Bad path " + path);
+        return result;
+    }
+}
@@ -22,6 +22,8 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
 
 
 public class Main { 
@@ -30,6 +32,11 @@ public class Main {
     public static final int DEFAULT_MAX_OUTPUT_LEN = 100_000;
     public static final String DEFAULT_TOKEN = "line";
     public static final int MUCH_LONGER = 1000; // if longer than the expected by this amount, truncate 
+    static final String CALL_DELIMITER = "~~CodeCheck-CALL~~"; // precedes the output of each batched call
+    // Stand for the values of the Submission, Time, and Elapsed comments, which differ for each check
+    public static final String SUBMISSION_PLACEHOLDER = "~~CodeCheck-Submission~~";
+    public static final String TIME_PLACEHOLDER = "~~CodeCheck-Time~~";
+    public static final String ELAPSED_PLACEHOLDER = "~~CodeCheck-Elapsed~~";
     
     private int timeoutMillis;
     private int maxOutputLen;
@@ -44,6 +51,63 @@ public class Main {
     private Score score = new Score();
     private Comparison comp = new Comparison();
     private Plan plan;
+    private Consumer<Report> progressListener;
+    private boolean placeholders;
+    private Cancellation cancellation;
+
+    /**
+     * Sets a listener that receives the report whenever sections have been added
+     * while the submission is checked, so that results can be shown as they come in.
+     */
+    public Main setProgressListener(Consumer<Report> progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * Puts placeholders into the report instead of the values of the Submission, Time, 
+     * and Elapsed comments, so that the report can be reused for another check of the
+     * same submission. A Stamp fills them in.
+     */
+    public Main setPlaceholders(boolean placeholders) {
+        this.placeholders = placeholders;
+        return this;
+    }
+
+    /**
+     * Sets a cancellation that stops the check. Then run throws a CancellationException
+     * instead of returning a partial report.
+     */
+    public Main setCancellation(Cancellation cancellation) {
+        this.cancellation = cancellation;
+        return this;
+    }
+
+    /**
+     * The values of the Submission, Time, and Elapsed comments of a check that starts
+     * when this object is constructed.
+     */
+    public static class Stamp {
+        private final long startTime = System.currentTimeMillis();
+        private final String submission = Util.createPrivateUID();
+        private final String time = currentTime();
+
+        /**
+         * @param text a report, or a part of it, with placeholders
+         * @return the text with the values of this check
+         */
+        public String apply(String text) {
+            return text.replace(SUBMISSION_PLACEHOLDER, submission)
+                .replace(TIME_PLACEHOLDER, time)
+                .replace(ELAPSED_PLACEHOLDER, (System.currentTimeMillis() - startTime) + " ms");
+        }
+    }
+
+    private static String currentTime() {
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return df.format(new Date());
+    }
 
     /**
      * Entry point to command line program.
@@ -146,9 +210,20 @@ public class Main {
         
         int timeout = timeoutMillis / calls.getSize();
         int maxOutput = maxOutputLen  / calls.getSize();
-        for (int i = 0; i < calls.getSize(); i++) {
-            plan.run("submissioncall", "submissioncall", "submissioncall" + i, submissionSources.get(0), "", "" + (i + 1), timeout, maxOutput, false);
-            plan.run("solutioncall", "solutioncall", "solutioncall" + i, solutionSources.get(0), "", "" + (i + 1), timeout, maxOutput, false);
+        boolean batched = problem.getLanguage().batchesCalls();
+        if (batched) {
+            // One process per side, with an extra share of the timeout for starting it. Each call
+            // has its share of the timeout and output, as it would in a process of its own. When a
+            // call times out or exits, comrun/bin/preload.sh runs the remaining calls in a new process.
+            String args = "all " + CALL_DELIMITER + " " + timeout + " " + maxOutput;
+            int maxBatchOutput = maxOutputLen + 2 * calls.getSize(); // with the delimiters and timeout messages
+            plan.run("submissioncall", "submissioncall", submissionSources.get(0), "", args, timeoutMillis + timeout, maxBatchOutput, false);
+            plan.run("solutioncall", "solutioncall", solutionSources.get(0), "", args, timeoutMillis + timeout, maxBatchOutput, false);
+        } else {
+            for (int i = 0; i < calls.getSize(); i++) {
+                plan.run("submissioncall", "submissioncall", "submissioncall" + i, submissionSources.get(0), "", "" + (i + 1), timeout, maxOutput, false);
+                plan.run("solutioncall", "solutioncall", "solutioncall" + i, solutionSources.get(0), "", "" + (i + 1), timeout, maxOutput, false);
+            }
         }
         plan.addTask(() -> {
             report.header("call", "Calling with arguments");
@@ -161,10 +236,12 @@ public class Main {
             String[] expected = new String[calls.getSize()];            
             boolean[] outcomes = new boolean[calls.getSize()];
             boolean[] hidden = new boolean[calls.getSize()];
+            String[] actualOutputs = batched ? splitCalls(plan.outerr("submissioncall"), calls.getSize()) : null;
+            String[] expectedOutputs = batched ? splitCalls(plan.outerr("solutioncall"), calls.getSize()) : null;
 
             for (int i = 0; i < calls.getSize(); i++) {
-                actual[i] = plan.outerr("submissioncall" + i);     
-                expected[i] = plan.outerr("solutioncall" + i);     
+                actual[i] = batched ? actualOutputs[i] : plan.outerr("submissioncall" + i);     
+                expected[i] = batched ? expectedOutputs[i] : plan.outerr("solutioncall" + i);     
                 outcomes[i] = actual[i].equals(expected[i]);     
                 Calls.Call call = calls.getCall(i);
                 names[i] = call.name;
@@ -176,6 +253,34 @@ public class Main {
         });
     }     
 
+    /**
+     * Splits the output of a batched CALL tester into the outputs of the calls. Output before 
+     * the first delimiter, such as a launcher message, belongs to every call, as it would if each call 
+     * had its own process. A call without a delimiter, because the tester was terminated, has only that output.
+     */
+    static String[] splitCalls(String output, int n) {
+        int[] starts = new int[n];
+        int[] ends = new int[n];
+        int k = 0;
+        int from = 0;
+        while (k < n && (starts[k] = output.indexOf(CALL_DELIMITER + " " + (k + 1) + "\n", from)) >= 0) {
+            from = starts[k] + (CALL_DELIMITER + " " + (k + 1) + "\n").length();
+            if (k > 0) ends[k - 1] = starts[k];
+            k++;
+        }
+        if (k > 0) ends[k - 1] = output.length();
+        String prelude = k == 0 ? output : output.substring(0, starts[0]);
+        String[] result = new String[n];
+        for (int i = 0; i < n; i++) {
+            if (i < k) {
+                int start = starts[i] + (CALL_DELIMITER + " " + (i + 1) + "\n").length();
+                result[i] = prelude + output.substring(start, ends[i]);
+            }
+            else result[i] = prelude;
+        }
+        return result;
+    }
+
     private void runUnitTests() {
         List<Path> unitTests = new ArrayList<>();
         for (Path p : problem.getUseFiles().keySet()) {
@@ -386,11 +491,9 @@ public class Main {
     }
     
     public void reportComments(Properties metadata) {
-        report.comment("Submission", Util.createPrivateUID());
+        report.comment("Submission", placeholders ? SUBMISSION_PLACEHOLDER : Util.createPrivateUID());
         // This is just a unique ID, can be used to check against cheating
-         DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-         df.setTimeZone(TimeZone.getTimeZone("UTC"));
-         String currentTime = df.format(new Date());
+         String currentTime = placeholders ? TIME_PLACEHOLDER : currentTime();
          report.comment("Time", currentTime);
          report.footnote(currentTime);
              
@@ -402,6 +505,14 @@ public class Main {
 
     public Plan run(Map<Path, String> submissionFiles, Map<Path, byte[]> problemFiles, 
             String reportType, Properties metadata, ResourceLoader resourceLoader) throws IOException {
+        return run(submissionFiles, problemFiles, null, reportType, metadata, resourceLoader);
+    }
+
+    /**
+     * @param parsedProblem the problem parsed from problemFiles, or null to parse it here
+     */
+    public Plan run(Map<Path, String> submissionFiles, Map<Path, byte[]> problemFiles, Problem parsedProblem,
+            String reportType, Properties metadata, ResourceLoader resourceLoader) throws IOException {
         long startTime = System.currentTimeMillis();
         boolean okToInterleave = true;
         boolean scoring = true; // TODO: Legacy?
@@ -423,9 +534,11 @@ public class Main {
             
             plan = new Plan(resourceLoader.getProperty("com.horstmann.codecheck.debug") != null);
             plan.setReport(report);
+            if (progressListener != null) plan.setProgressListener(() -> progressListener.accept(report));
+            plan.setCancellation(cancellation);
             plan.readSolutionOutputs(problemFiles);
 
-            problem = new Problem(problemFiles);
+            problem = parsedProblem != null ? parsedProblem : new Problem(problemFiles);
             if (report instanceof SetupReport) ((SetupReport) report).setProblem(problem); 
             plan.setLanguage(problem.getLanguage());
 
@@ -534,9 +647,24 @@ public class Main {
                         });
                     }
                 }
-                String remoteURL = resourceLoader.getProperty("com.horstmann.codecheck.comrun.remote");            
+                String remoteURL = ComrunPool.remoteURLs(resourceLoader, plan.getLanguage());
                 String scriptCommand = resourceLoader.getProperty("com.horstmann.codecheck.comrun.local");  
-                if (remoteURL == null && scriptCommand == null) throw new CodeCheckException("Neither local nor remote comrun defined");
+                String embeddedHome = resourceLoader.getProperty("com.horstmann.codecheck.comrun.embedded");
+                if (remoteURL == null && scriptCommand == null && embeddedHome == null) 
+                    throw new CodeCheckException("Neither local nor remote comrun defined");
+                String hedge = resourceLoader.getProperty("com.horstmann.codecheck.comrun.hedge");
+                if (remoteURL != null && hedge != null) ComrunPool.of(remoteURL).setHedgeMillis(Integer.parseInt(hedge));
+                ComrunScheduler comrun = new ComrunScheduler(remoteURL, scriptCommand, 
+                    resourceLoader.getProperty("com.horstmann.codecheck.debug") != null);
+                if (embeddedHome != null) {
+                    // Runs the programs in this JVM's host, for single-box deployments
+                    String jobs = resourceLoader.getProperty("com.horstmann.codecheck.comrun.jobs");
+                    comrun.setEmbedded(EmbeddedComrun.of(embeddedHome, jobs == null ? 0 : Integer.parseInt(jobs)));
+                }
+                if ("true".equals(resourceLoader.getProperty("com.horstmann.codecheck.comrun.staged")))
+                    plan.setScheduler(new StagedScheduler(comrun));
+                else 
+                    plan.setScheduler(comrun);
                 plan.execute(report, remoteURL, scriptCommand);
             }
             
@@ -558,7 +686,12 @@ public class Main {
                     }
                 }
             }
+        } catch (ComrunPool.BusyException ex) {
+            throw ex; // Not a problem of the submission. The caller can try again later.
+        } catch (CancellationException ex) {
+            throw ex; // The caller abandons the report
         } catch (Throwable t) {
+            if (t instanceof InterruptedException) Thread.currentThread().interrupt(); // The caller abandons the report
             if (report != null) report.systemError(t);
             else t.printStackTrace();
         } finally {
@@ -566,7 +699,7 @@ public class Main {
                 if (scoring && problem != null && !problem.getInputMode()) 
                     report.add(score);
                 long endTime = System.currentTimeMillis();
-                report.comment("Elapsed", (endTime - startTime) + " ms");
+                report.comment("Elapsed", placeholders ? ELAPSED_PLACEHOLDER : (endTime - startTime) + " ms");
                 report.close();
             }
             else System.err.println("report is null");
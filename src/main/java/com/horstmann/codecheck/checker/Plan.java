@@ -4,41 +4,83 @@ import com.horstmann.codecheck.language.Language;
 import com.horstmann.codecheck.report.Report;
 
 import java.io.IOException;
-import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
 
 public class Plan {
     private Language language;
     private List<Runnable> tasks = new ArrayList<>();
+    private List<Integer> taskSteps = new ArrayList<>(); // number of steps preceding each task
+    private int nextTask;
+    private int completedSteps; // number of leading steps whose outputs are available
+    private Runnable progressListener;
+    private Cancellation cancellation;
     private Map<Path, byte[]> files = new Util.FileMap();
     private Map<Path, byte[]> outputs = new Util.FileMap();
-    private StringBuilder scriptBuilder = new StringBuilder();
+    private List<Step> steps = new ArrayList<>();
+    private Map<String, Step> lastSteps = new HashMap<>(); // dir -> last step in dir
+    private Scheduler scheduler;
     private int nextID = 0;
+    private static final Map.Entry<Path, byte[]> END_OF_OUTPUTS = Map.entry(Path.of(""), new byte[0]);
     private static int MIN_TIMEOUT = 3; // TODO: Maybe better to switch interleaveio and timeout? 
     private boolean debug;
     private Report report;
+    private boolean completed; // true if comrun ran to the end without a timeout
     
     public Plan(boolean debug) throws IOException {
         this.debug = debug;
-        if (debug) addScript("debug");        
+        if (debug) addStep(Step.Type.DEBUG, null, List.of(), List.of(), null);        
+    }
+
+    /**
+     * Sets the scheduler that executes the steps of this plan. By default, the steps
+     * are executed by comrun, as specified in the execute method.
+     */
+    public void setScheduler(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Sets a listener that is notified when tasks have been run while the steps are
+     * still executing. Then each task is run as soon as the outputs of the steps that
+     * precede it are available, on the thread that calls execute.
+     */
+    public void setProgressListener(Runnable progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Sets the cancellation that cancels the execution of the steps. Then execute
+     * throws a CancellationException.
+     */
+    public void setCancellation(Cancellation cancellation) {
+        this.cancellation = cancellation;
     }
 
     public void setLanguage(Language language) {
         this.language = language;
     }
-    
+
+    /**
+     * @return the language of this plan, which determines the comrun pool that executes it
+     */
+    public Language getLanguage() {
+        return language;
+    }
+
     public void setReport(Report report) {
     	this.report = report;
     }
@@ -47,6 +89,19 @@ public class Plan {
     	return this.report;
     }
 
+    /**
+     * Checks whether the outcome of this plan is reproducible, so that its report
+     * can be reused for the same submission. That is not the case if comrun failed
+     * or a program was killed by a timeout, which can depend on the server load.
+     */
+    public boolean isCacheable() {
+        if (!completed) return false;
+        // comrun marks a run that timed out with an output id/_timeout (see preload.sh)
+        for (Path p : outputs.keySet())
+            if (p.getNameCount() == 2 && p.endsWith("_timeout")) return false;
+        return true;
+    }
+
     public void writeSolutionOutputs(Map<Path, byte[]> filesToSave) {
         for (Map.Entry<Path, byte[]> entry : outputs.entrySet()) {
             Path p = entry.getKey();
@@ -90,11 +145,24 @@ public class Plan {
     public void addFile(Path path, byte[] contents) {
         files.put(path, contents);
     }
-    public void addTask(Runnable task) { tasks.add(task); }
+    public void addTask(Runnable task) { 
+        tasks.add(task); 
+        taskSteps.add(steps.size());
+    }
     
-    private void addScript(CharSequence command) {
-        scriptBuilder.append(command);
-        scriptBuilder.append("\n");
+    private void addStep(Step.Type type, String dir, List<String> args, List<Path> outputs, Path input) {
+        List<Step> dependencies = new ArrayList<>();
+        if (dir != null && lastSteps.containsKey(dir)) dependencies.add(lastSteps.get(dir));
+        if (type == Step.Type.PREPARE) 
+            for (String source : args)
+                if (lastSteps.containsKey(source)) dependencies.add(lastSteps.get(source));
+        Step step = new Step(type, dir, args, dependencies, outputs, input);
+        steps.add(step);
+        if (dir != null) lastSteps.put(dir, step);
+    }
+
+    private void prepare(String dir, String sourceDirs) {
+        addStep(Step.Type.PREPARE, dir, List.of(sourceDirs.trim().split("\\s+")), List.of(), null);
     }
 
     public boolean checkCompiled(String compileDir, Report report, Score score) {
@@ -168,9 +236,12 @@ public class Plan {
         List<Path> allSourceFiles = new ArrayList<>();
         allSourceFiles.addAll(sourceFiles);
         allSourceFiles.addAll(dependentSourceFiles);
-        addScript("prepare " + compileDir + " use " + sourceDirs);
-        if (!outputs.containsKey(Paths.get(compileDir).resolve("_compile")))
-            addScript("compile " + compileDir + " " + language.getLanguage() + " " + Util.join(allSourceFiles, " "));
+        prepare(compileDir, "use " + sourceDirs);
+        List<String> args = new ArrayList<>();
+        args.add(language.getLanguage());
+        for (Path p : allSourceFiles) args.add(p.toString());
+        addStep(Step.Type.COMPILE, compileDir, args, 
+            List.of(Paths.get(compileDir, "_compile"), Paths.get(compileDir, "_errors")), null);
     }
 
     // TODO maxOutputLen
@@ -181,89 +252,101 @@ public class Plan {
     // for multiple runs in the same directory
     public void run(String compileDir, String runDir, String runID, Path mainFile, String input, String args, int timeout, int maxOutputLen, boolean interleaveIO) {
         if (!compileDir.equals(runDir)) 
-            addScript("prepare " + runDir + " " + compileDir);
-        addFile(Paths.get("in").resolve(runID), input == null ? "" : input);
-        if (!outputs.containsKey(Paths.get(runID).resolve("_run")))
-            addScript("run " + runDir + " " + runID + " " + Math.max(MIN_TIMEOUT, (timeout + 500) / 1000) + " " + maxOutputLen + " " + interleaveIO + " " + language.getLanguage() + " " + mainFile + (args == null ? "" : " " + args));
+            prepare(runDir, compileDir);
+        Path inputPath = Paths.get("in").resolve(runID);
+        addFile(inputPath, input == null ? "" : input);
+        List<String> runArgs = new ArrayList<>(List.of(runID, "" + Math.max(MIN_TIMEOUT, (timeout + 500) / 1000), "" + maxOutputLen, "" + interleaveIO, 
+            language.getLanguage(), mainFile.toString()));
+        if (args != null && !args.isBlank()) runArgs.add(args);
+        addStep(Step.Type.RUN, runDir, runArgs, List.of(Paths.get(runID, "_run")), inputPath);
     }
 
     public void run(String compileDir, String runDir, Path mainFile, String args, String input, Collection<String> outfiles, int timeout, int maxOutputLen, boolean interleaveIO) {
-        if (outputs.containsKey(Paths.get(runDir).resolve("_run"))) return;
         run(compileDir, runDir, mainFile, input, args, timeout, maxOutputLen, interleaveIO);
-        if (outfiles.size() > 0)
-            addScript("collect " + runDir + " " + Util.join(outfiles, " "));
+        if (outfiles.size() > 0) {
+            List<Path> collected = new ArrayList<>();
+            for (String f : outfiles) collected.add(Paths.get(runDir, f));
+            addStep(Step.Type.COLLECT, runDir, new ArrayList<>(outfiles), collected, null);
+        }
     }
     
     public void unitTest(String dir, Path mainFile, Collection<Path> dependentSourceFiles, int timeout, int maxOutputLen) {
-        addScript("prepare " + dir + " use submission");
-        addScript("unittest " + dir + " " + Math.max(MIN_TIMEOUT, (timeout + 500) / 1000) + " " + " " + language.getLanguage() + " " + mainFile + " " + Util.join(dependentSourceFiles, " "));
+        prepare(dir, "use submission");
+        List<String> args = new ArrayList<>(List.of("" + Math.max(MIN_TIMEOUT, (timeout + 500) / 1000), language.getLanguage(), mainFile.toString()));
+        for (Path p : dependentSourceFiles) args.add(p.toString());
+        addStep(Step.Type.UNITTEST, dir, args, List.of(Paths.get(dir, "_run"), Paths.get(dir, "_errors")), null);
     }    
     
     public void process(String dir, String cmd) {
-        addScript("prepare " + dir + " use submission");
-        addScript("process " + dir + " " + cmd);
+        prepare(dir, "use submission");
+        addStep(Step.Type.PROCESS, dir, List.of(cmd), List.of(Paths.get(dir, "_run")), null);
     }
         
+    /**
+     * Executes the steps of this plan with the scheduler. If none was set, the steps 
+     * are executed by comrun at the remote URL, or, if it is not set, with the local script command.
+     * Then the tasks are run. With a progress listener, tasks are already run while 
+     * the steps execute.
+     */
     public void execute(Report report, String remoteURL, String scriptCommand) throws IOException, InterruptedException {
-        files.put(Paths.get("script"), scriptBuilder.toString().getBytes(StandardCharsets.UTF_8));        
-        if (remoteURL == null || remoteURL.isEmpty())
-            executeLocally(scriptCommand, report);
-        else
-            executeRemotely(remoteURL, report);
-        for (Runnable task : tasks) 
-            task.run(); 
-    }
-
-    private void executeLocally(String scriptCommand, Report report)
-            throws IOException, InterruptedException {
-        Path requestZip = Files.createTempFile("codecheck-request", ".zip",
-            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-r--r--")));;
-        Path responseZip = null;
-        try {
-            if (debug) System.out.println(requestZip);
-            Files.write(requestZip, Util.zip(files));           
-            int millis = 30000; // TODO`
-            String result = Util.runProcess(scriptCommand + " " + requestZip.toString(), millis);
-            if (debug) System.out.println(result); 
-            String[] lines = result.split("\n");
-            int n = lines.length - 1;
-            if (lines[n].trim().isEmpty()) n--;
-            responseZip = Paths.get(lines[n]);
-            if (!Files.exists(responseZip))
-                throw new CodeCheckException("comrun failed.\n" + result);
-            outputs.putAll(Util.unzip(Files.readAllBytes(responseZip)));            
-        } finally {
-            if (!debug) {
-                Files.deleteIfExists(requestZip);
-                if (responseZip != null) Files.deleteIfExists(responseZip);
-            }
-        }
-    }
-    
-    private void executeRemotely(String remoteURL, Report report)
-            throws IOException {
-        byte[] requestZip = Util.zip(files);
-        int retries = 2;
-        while (retries > 0) {
+        if (scheduler == null) scheduler = new ComrunScheduler(remoteURL, scriptCommand, debug);
+        if (progressListener == null) 
+            outputs.putAll(scheduler.execute(steps, files, outputs, (path, contents) -> {}, cancellation));
+        else {
+            Map<Path, byte[]> knownOutputs = new Util.FileMap();
+            knownOutputs.putAll(outputs);
+            runReadyTasks();
+            // The scheduler passes the outputs to this thread, which runs the tasks, so that it isn't held up by them
+            BlockingQueue<Map.Entry<Path, byte[]>> arrivals = new LinkedBlockingQueue<>();
+            CompletableFuture<Map<Path, byte[]>> execution = scheduler.executeAsync(steps, files, knownOutputs, 
+                (path, contents) -> arrivals.add(Map.entry(path, contents))).toCompletableFuture();
+            execution.whenComplete((result, ex) -> arrivals.add(END_OF_OUTPUTS));
+            if (cancellation != null) cancellation.onCancel(() -> execution.cancel(true));
             try {
-                byte[] responseZip = Util.fileUpload(remoteURL, "job", "job.zip", requestZip);
-                if (responseZip.length < 2 || !(responseZip[0] == 0x50 && responseZip[1] == 0x4b))
-                	throw new IOException("Remote result not a zip file");
-                outputs.putAll(Util.unzip(responseZip));
-                if (debug) {
-                    Path temp = Files.createTempFile("codecheck-request", ".zip");
-                    System.out.println("Remote request at " + temp);
-                    Files.write(temp, requestZip);
-                    temp = Paths.get(temp.toString().replace("request",  "response"));
-                    System.out.println("Remote result at " + temp);
-                    Files.write(temp, responseZip);
+                for (Map.Entry<Path, byte[]> arrival = arrivals.take(); arrival != END_OF_OUTPUTS; arrival = arrivals.take()) {
+                    outputs.put(arrival.getKey(), arrival.getValue());
+                    if (arrivals.isEmpty()) runReadyTasks();
                 }
-                return;
-            } catch (IOException ex) {
-                retries--;
-                if (retries == 0 || !(ex.getMessage().startsWith("Status: 5") || ex instanceof SocketTimeoutException)) // TODO: More elegant
-                    throw ex;
+            } catch (InterruptedException | RuntimeException ex) {
+                execution.cancel(true);
+                throw ex;
             }
+            outputs.putAll(Scheduler.await(execution));
+        }
+        runTasks();
+    }
+
+    /*
+     * Runs the tasks whose preceding steps are complete, and notifies the progress listener.
+     */
+    private void runReadyTasks() {
+        while (completedSteps < steps.size() && isComplete(steps.get(completedSteps))) completedSteps++;
+        int firstTask = nextTask;
+        while (nextTask < tasks.size() && taskSteps.get(nextTask) <= completedSteps) {
+            tasks.get(nextTask).run();
+            nextTask++;
         }
+        if (nextTask > firstTask) progressListener.run();
+    }
+
+    /*
+     * A step is complete when one of its outputs is available, or when it isn't
+     * executed because of a failed compile. Steps without outputs are complete
+     * when the steps before them are. Collected files are complete when all of them
+     * are available, since a program may produce them after its output.
+     */
+    private boolean isComplete(Step step) {
+        List<Path> stepOutputs = step.getOutputs();
+        if (stepOutputs.isEmpty()) return true;
+        if (step.getType() == Step.Type.COLLECT) return outputs.keySet().containsAll(stepOutputs);
+        for (Path p : stepOutputs)
+            if (outputs.containsKey(p)) return true;
+        return ComrunScheduler.hasFailedCompile(step, outputs);
+    }
+
+    private void runTasks() {
+        for (; nextTask < tasks.size(); nextTask++) 
+            tasks.get(nextTask).run(); 
+        completed = true;
     }
 }
@@ -0,0 +1,87 @@
+package com.horstmann.codecheck.checker;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Executes the steps of a plan.
+ */
+public interface Scheduler {
+    /**
+     * Executes the steps, and reports each output as soon as it is available, before
+     * all steps have been executed.
+     * @param steps the steps of the plan, each after its dependencies
+     * @param files the files of the plan (sources in their directories, inputs in the "in" directory)
+     * @param knownOutputs outputs that are already known, such as saved solution outputs.
+     * Steps producing them need not be executed, and dependents of a compile step with
+     * known errors need not be executed either.
+     * @param listener receives the outputs as they become available. It may be called
+     * from another thread, and not at all for outputs of a job that was shared with
+     * another caller. All outputs are in the result.
+     * @return the outputs of the executed steps. Cancelling the returned future cancels 
+     * the execution.
+     */
+    CompletionStage<Map<Path, byte[]>> executeAsync(List<Step> steps, Map<Path, byte[]> files, Map<Path, byte[]> knownOutputs,
+        BiConsumer<Path, byte[]> listener);
+
+    /**
+     * Executes the steps and waits for the outputs.
+     */
+    default Map<Path, byte[]> execute(List<Step> steps, Map<Path, byte[]> files, Map<Path, byte[]> knownOutputs)
+            throws IOException, InterruptedException {
+        return execute(steps, files, knownOutputs, (path, contents) -> {});
+    }
+
+    /**
+     * Executes the steps, reporting the outputs to the listener as they become available,
+     * and waits for the outputs. If the calling thread is interrupted, the execution
+     * is cancelled.
+     */
+    default Map<Path, byte[]> execute(List<Step> steps, Map<Path, byte[]> files, Map<Path, byte[]> knownOutputs,
+            BiConsumer<Path, byte[]> listener) throws IOException, InterruptedException {
+        return execute(steps, files, knownOutputs, listener, null);
+    }
+
+    /**
+     * Executes the steps like execute, and cancels the execution when the given
+     * cancellation is cancelled.
+     * @param cancellation the cancellation of the check, or null
+     * @throws CancellationException if the execution was cancelled
+     */
+    default Map<Path, byte[]> execute(List<Step> steps, Map<Path, byte[]> files, Map<Path, byte[]> knownOutputs,
+            BiConsumer<Path, byte[]> listener, Cancellation cancellation) throws IOException, InterruptedException {
+        CompletableFuture<Map<Path, byte[]>> future = executeAsync(steps, files, knownOutputs, listener).toCompletableFuture();
+        if (cancellation != null) cancellation.onCancel(() -> future.cancel(true));
+        return await(future);
+    }
+
+    /**
+     * Waits for the outputs of an execution. If the calling thread is interrupted, the
+     * execution is cancelled.
+     * @throws CancellationException if the execution was cancelled
+     */
+    static Map<Path, byte[]> await(CompletableFuture<Map<Path, byte[]>> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            throw ex;
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            while ((cause instanceof CompletionException || cause instanceof UncheckedIOException) && cause.getCause() != null) 
+                cause = cause.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+}
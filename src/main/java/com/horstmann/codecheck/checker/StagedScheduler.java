@@ -0,0 +1,71 @@
+package com.horstmann.codecheck.checker;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+
+/**
+ * Executes the submission compile steps first, so that compilation errors are
+ * reported without waiting for the runs. The remaining steps are then executed with
+ * the compile outputs as known outputs, which skips the dependents of failed compiles
+ * and the solution counterparts of failed submission compiles. Since compiled
+ * directories do not survive a comrun job, successful compiles are repeated
+ * in the second stage.
+ */
+public class StagedScheduler implements Scheduler {
+    private Scheduler scheduler;
+
+    public StagedScheduler(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public CompletionStage<Map<Path, byte[]>> executeAsync(List<Step> steps, Map<Path, byte[]> files, Map<Path, byte[]> knownOutputs,
+            BiConsumer<Path, byte[]> listener) {
+        Set<Step> compileSteps = new HashSet<>();
+        for (Step step : steps)
+            if (step.getType() == Step.Type.COMPILE && step.getDir().startsWith("submission"))
+                addWithDependencies(step, compileSteps);
+        if (compileSteps.isEmpty() || compileSteps.size() == steps.size())
+            return scheduler.executeAsync(steps, files, knownOutputs, listener);
+        List<Step> firstStage = new ArrayList<>();
+        for (Step step : steps)
+            if (compileSteps.contains(step)) firstStage.add(step);
+        CompletableFuture<Map<Path, byte[]>> result = new CompletableFuture<>();
+        CompletableFuture<Map<Path, byte[]>> first = scheduler.executeAsync(firstStage, files, knownOutputs, listener).toCompletableFuture();
+        Util.cancelWith(result, first);
+        first.whenComplete((firstOutputs, ex) -> {
+            if (ex != null) {
+                result.completeExceptionally(ex);
+                return;
+            }
+            if (result.isDone()) return; // cancelled
+            Map<Path, byte[]> allKnownOutputs = new Util.FileMap();
+            allKnownOutputs.putAll(knownOutputs);
+            allKnownOutputs.putAll(firstOutputs);
+            CompletableFuture<Map<Path, byte[]>> second = scheduler.executeAsync(steps, files, allKnownOutputs, listener).toCompletableFuture();
+            Util.cancelWith(result, second);
+            second.whenComplete((secondOutputs, ex2) -> {
+                if (ex2 != null) {
+                    result.completeExceptionally(ex2);
+                    return;
+                }
+                Map<Path, byte[]> outputs = new Util.FileMap();
+                outputs.putAll(firstOutputs);
+                outputs.putAll(secondOutputs);
+                result.complete(outputs);
+            });
+        });
+        return result;
+    }
+
+    private static void addWithDependencies(Step step, Set<Step> result) {
+        if (result.add(step))
+            for (Step d : step.getDependencies()) addWithDependencies(d, result);
+    }
+}
@@ -0,0 +1,91 @@
+package com.horstmann.codecheck.checker;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A node in the DAG of a plan. Each step corresponds to one instruction of the
+ * comrun script (see comrun/bin/comrun). A step depends on the previous step in its
+ * directory and, when preparing a directory, on the last steps of the source directories.
+ */
+public class Step {
+    public enum Type { PREPARE, COMPILE, RUN, COLLECT, UNITTEST, PROCESS, DEBUG }
+
+    /**
+     * The time limit in seconds for compilers and other tools, which have none in the script
+     */
+    public static final int TOOL_TIMEOUT = 60;
+
+    private Type type;
+    private String dir;
+    private List<String> args;
+    private List<Step> dependencies;
+    private List<Path> outputs;
+    private Path input;
+
+    Step(Type type, String dir, List<String> args, List<Step> dependencies, List<Path> outputs, Path input) {
+        this.type = type;
+        this.dir = dir;
+        this.args = Collections.unmodifiableList(new ArrayList<>(args));
+        this.dependencies = Collections.unmodifiableList(new ArrayList<>(dependencies));
+        this.outputs = Collections.unmodifiableList(new ArrayList<>(outputs));
+        this.input = input;
+    }
+
+    public Type getType() { return type; }
+
+    /**
+     * @return the directory in which this step is executed, or null for DEBUG
+     */
+    public String getDir() { return dir; }
+
+    /**
+     * @return the arguments following the directory in the script instruction.
+     * For PREPARE, the source directories. For RUN, the run ID is the first argument.
+     */
+    public List<String> getArgs() { return args; }
+
+    public List<Step> getDependencies() { return dependencies; }
+
+    /**
+     * @return the paths in the outputs of the plan that this step produces. If any of them
+     * is already known, the step need not be executed.
+     */
+    public List<Path> getOutputs() { return outputs; }
+
+    /**
+     * @return the path of the standard input file of a RUN step, or null
+     */
+    public Path getInput() { return input; }
+
+    /**
+     * @return the estimated cost of this step, in processes launched by comrun
+     */
+    public int getCost() {
+        return type == Type.COMPILE || type == Type.RUN || type == Type.UNITTEST || type == Type.PROCESS ? 1 : 0;
+    }
+
+    /**
+     * @return the time limit of this step in seconds, from the script instruction
+     * for RUN and UNITTEST, TOOL_TIMEOUT for COMPILE and PROCESS, and 0 otherwise
+     */
+    public int getTimeout() {
+        if (type == Type.RUN) return Integer.parseInt(args.get(1));
+        if (type == Type.UNITTEST) return Integer.parseInt(args.get(0));
+        if (type == Type.COMPILE || type == Type.PROCESS) return TOOL_TIMEOUT;
+        return 0;
+    }
+
+    public String toScript() {
+        StringBuilder result = new StringBuilder(type.name().toLowerCase());
+        if (dir != null) result.append(" ").append(dir);
+        for (String arg : args) result.append(" ").append(arg);
+        return result.toString();
+    }
+
+    public String toString() {
+        return toScript();
+    }
+}
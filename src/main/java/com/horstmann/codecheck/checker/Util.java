@@ -1,5 +1,6 @@
 package com.horstmann.codecheck.checker;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -15,6 +16,9 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.CharacterCodingException;
@@ -27,10 +31,16 @@ import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -260,6 +270,7 @@ public class Util {
             return ex.getMessage();
         }
     }
+
     
     // Escaping
     
@@ -382,6 +393,113 @@ public class Util {
         return result;
     }
     
+    // Framed files, exchanged with comrun (see comrun/bin/frames.py). Each file is a header
+    // line "length path", followed by the contents. A frame with path "." ends a response.
+    // In a request, a file can also be a reference "=hash path" to a blob in the cache of
+    // the comrun node, without contents. A frame with path "=hash" adds a blob to the cache.
+
+    private static final String END_OF_FRAMES = ".";
+
+    /**
+     * @return the frames of the given files, as a sequence of headers and contents
+     */
+    public static List<byte[]> frames(Map<Path, byte[]> files) {
+        return frames(files, Set.of(), Set.of());
+    }
+
+    /**
+     * @param references the paths of the files that are sent as references to blobs
+     * @param blobs the SHA-256 hashes (see digest) of the blobs whose contents are sent
+     * @return the frames of the given files, as a sequence of headers and contents
+     */
+    public static List<byte[]> frames(Map<Path, byte[]> files, Set<Path> references, Set<String> blobs) {
+        List<byte[]> result = new ArrayList<>();
+        Set<String> sent = new HashSet<>();
+        for (Map.Entry<Path, byte[]> entry : files.entrySet()) {
+            if (references.contains(entry.getKey())) {
+                String hash = digest(entry.getValue());
+                if (blobs.contains(hash) && sent.add(hash)) {
+                    result.add((entry.getValue().length + " =" + hash + "\n").getBytes(StandardCharsets.UTF_8));
+                    result.add(entry.getValue());
+                }
+                result.add(("=" + hash + " " + entry.getKey() + "\n").getBytes(StandardCharsets.UTF_8));
+            } else {
+                result.add((entry.getValue().length + " " + entry.getKey() + "\n").getBytes(StandardCharsets.UTF_8));
+                result.add(entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    public static void writeFrames(Map<Path, byte[]> files, OutputStream out) throws IOException {
+        for (byte[] bytes : frames(files)) out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Reads frames until the end marker.
+     * @param consumer receives each file as soon as it has been read
+     * @throws IOException if the input ends without the end marker
+     */
+    public static void readFrames(InputStream in, BiConsumer<Path, byte[]> consumer) throws IOException {
+        in = new BufferedInputStream(in);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        while (true) {
+            header.reset();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') header.write(b);
+            if (b == -1) throw new IOException("Incomplete response");
+            String line = header.toString(StandardCharsets.UTF_8);
+            int space = line.indexOf(' ');
+            if (space < 0) throw new IOException("Bad frame header: " + line);
+            String path = line.substring(space + 1);
+            if (path.equals(END_OF_FRAMES)) return;
+            int length;
+            try {
+                length = Integer.parseInt(line.substring(0, space));
+            } catch (NumberFormatException ex) {
+                length = -1;
+            }
+            if (length < 0) throw new IOException("Bad frame header: " + line);
+            byte[] contents = in.readNBytes(length);
+            if (contents.length < length) throw new IOException("Incomplete response");
+            consumer.accept(Paths.get(path), contents);
+        }
+    }
+
+    public static Map<Path, byte[]> readFrames(InputStream in) throws IOException {
+        Map<Path, byte[]> result = new FileMap();
+        readFrames(in, result::put);
+        return result;
+    }
+
+    /**
+     * Computes a SHA-256 digest of file paths and contents, independent of map order.
+     * @return the digest as a hex string
+     */
+    public static String digest(Map<Path, byte[]> files) {
+        MessageDigest md = newDigest();
+        for (Map.Entry<Path, byte[]> entry : new TreeMap<>(files).entrySet()) {
+            md.update(entry.getKey().toString().getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(ByteBuffer.allocate(Long.BYTES).putLong(entry.getValue().length).array());
+            md.update(entry.getValue());
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    public static String digest(byte[] bytes) {
+        return HexFormat.of().formatHex(newDigest().digest(bytes));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
     public static Map<Path, byte[]> descendantFiles(Path dir) throws IOException {
         Map<Path, byte[]> result = new FileMap(); 
         if (dir == null || !Files.exists(dir))
@@ -414,36 +532,22 @@ public class Util {
     
     // HTTP
     
+    private static final int FILE_UPLOAD_TIMEOUT = 90000; // 90 seconds
+    private static HttpClient httpClient;
+
     public static byte[] fileUpload(String urlString, String fieldName, String fileName, byte[] bytes) throws IOException {
-        final int TIMEOUT = 90000; // 90 seconds
         String boundary = "===" + createPrivateUID() + "===";
         URL url = URI.create(urlString).toURL();
         HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setConnectTimeout(TIMEOUT);
-        conn.setReadTimeout(TIMEOUT);
+        conn.setConnectTimeout(FILE_UPLOAD_TIMEOUT);
+        conn.setReadTimeout(FILE_UPLOAD_TIMEOUT);
         conn.setUseCaches(false);
         conn.setDoOutput(true); 
         conn.setDoInput(true);
         conn.setRequestProperty("Content-Type",
                 "multipart/form-data; boundary=" + boundary);
         OutputStream out = conn.getOutputStream();
-        StringBuilder builder = new StringBuilder();
-        builder.append("--").append(boundary)
-            .append("\r\n")
-            .append("Content-Disposition: form-data; name=\"").append(fieldName)
-            .append("\"; filename=\"").append(fileName).append("\"")
-            .append("\r\n")
-            .append("Content-Type: ")
-            .append(URLConnection.guessContentTypeFromName(fileName))
-            .append("\r\n")
-            .append("Content-Transfer-Encoding: binary")
-            .append("\r\n")
-            .append("\r\n");
-        out.write(builder.toString().getBytes(StandardCharsets.UTF_8));
-        out.write(bytes);
-        builder.delete(0,  builder.length());
-        builder.append("\r\n\r\n--").append(boundary).append("--\r\n");
-        out.write(builder.toString().getBytes(StandardCharsets.UTF_8));
+        out.write(multipartBody(boundary, fieldName, fileName, bytes));
         out.close();
         int status = conn.getResponseCode();
         if (status == HttpURLConnection.HTTP_OK) {
@@ -463,6 +567,179 @@ public class Util {
             throw new IOException("Status: " + status);
         }        
     }
+
+    /**
+     * Gets the contents of a URL, without blocking a thread while waiting for the response.
+     * The future completes exceptionally with an IOException if the status is not 200.
+     */
+    public static CompletableFuture<String> httpGetAsync(String urlString, int millis) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(urlString))
+            .timeout(Duration.ofMillis(millis))
+            .GET()
+            .build();
+        return httpClient().sendAsync(request, HttpResponse.BodyHandlers.ofString())
+            .thenApply(response -> {
+                if (response.statusCode() == HttpURLConnection.HTTP_OK) return response.body();
+                else throw new CompletionException(new IOException("Status: " + response.statusCode()));
+            });
+    }
+
+    /**
+     * Posts files as frames, in a chunked request, and reads the framed response as it arrives, 
+     * on a virtual thread. The future completes exceptionally with an IOException if the
+     * status is not 200 or the response is incomplete. Cancelling the future aborts the request.
+     * @param listener receives each file of the response when it has been read
+     */
+    public static CompletableFuture<Map<Path, byte[]>> postFramesAsync(String urlString, Map<Path, byte[]> files,
+            BiConsumer<Path, byte[]> listener) {
+        return postFramesAsync(urlString, frames(files), listener);
+    }
+
+    /**
+     * Posts files like postFramesAsync, with the given files as references to blobs.
+     * If the server responds with 409 Conflict and the hashes of the blobs that it
+     * doesn't have, one per line, the request is repeated with their contents.
+     */
+    public static CompletableFuture<Map<Path, byte[]>> postFramesAsync(String urlString, Map<Path, byte[]> files,
+            Set<Path> references, BiConsumer<Path, byte[]> listener) {
+        if (references.isEmpty()) return postFramesAsync(urlString, files, listener);
+        CompletableFuture<Map<Path, byte[]>> result = new CompletableFuture<>();
+        CompletableFuture<Map<Path, byte[]>> first = postFramesAsync(urlString, frames(files, references, Set.of()), listener);
+        cancelWith(result, first);
+        first.whenComplete((outputs, ex) -> {
+            if (ex == null) result.complete(outputs);
+            else if (ex instanceof MissingBlobsException missing) {
+                CompletableFuture<Map<Path, byte[]>> second = postFramesAsync(urlString, 
+                    frames(files, references, missing.hashes), listener);
+                cancelWith(result, second);
+                second.whenComplete((outputs2, ex2) -> {
+                    if (ex2 == null) result.complete(outputs2);
+                    else result.completeExceptionally(ex2);
+                });
+            }
+            else result.completeExceptionally(ex);
+        });
+        return result;
+    }
+
+    private static class MissingBlobsException extends IOException {
+        private static final long serialVersionUID = 1L;
+        transient Set<String> hashes;
+
+        MissingBlobsException(Set<String> hashes) {
+            super("Status: 409");
+            this.hashes = hashes;
+        }
+    }
+
+    /**
+     * A 503 response, which a comrun node sends when its queue is full.
+     */
+    public static class UnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private int retryAfterSeconds;
+
+        UnavailableException(int retryAfterSeconds) {
+            super("Status: 503");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        /**
+         * @return the seconds of the Retry-After header, or 1 if there is none
+         */
+        public int getRetryAfterSeconds() { return retryAfterSeconds; }
+    }
+
+    private static CompletableFuture<Map<Path, byte[]>> postFramesAsync(String urlString, List<byte[]> frames,
+            BiConsumer<Path, byte[]> listener) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(urlString))
+            .timeout(Duration.ofMillis(FILE_UPLOAD_TIMEOUT))
+            .header("Content-Type", "application/octet-stream")
+            .POST(HttpRequest.BodyPublishers.ofByteArrays(frames))
+            .build();
+        CompletableFuture<Map<Path, byte[]>> result = new CompletableFuture<>();
+        CompletableFuture<HttpResponse<InputStream>> sent = httpClient().sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+        cancelWith(result, sent);
+        sent.whenComplete((response, ex) -> {
+            if (ex != null) {
+                result.completeExceptionally(ex);
+                return;
+            }
+            Thread reader = Thread.ofVirtual().unstarted(() -> {
+                try (InputStream in = response.body()) {
+                    if (response.statusCode() == HttpURLConnection.HTTP_CONFLICT)
+                        throw new MissingBlobsException(new HashSet<>(List.of(
+                            new String(in.readAllBytes(), StandardCharsets.UTF_8).trim().split("\\s+"))));
+                    if (response.statusCode() == HttpURLConnection.HTTP_UNAVAILABLE) {
+                        int retryAfter = 1;
+                        try {
+                            retryAfter = Math.max(1, Integer.parseInt(response.headers().firstValue("Retry-After").orElse("1").trim()));
+                        } catch (NumberFormatException ex2) {
+                            // An HTTP date, which comrun doesn't send
+                        }
+                        throw new UnavailableException(retryAfter);
+                    }
+                    if (response.statusCode() != HttpURLConnection.HTTP_OK) 
+                        throw new IOException("Status: " + response.statusCode());
+                    Map<Path, byte[]> outputs = new FileMap();
+                    readFrames(in, (path, contents) -> {
+                        outputs.put(path, contents);
+                        listener.accept(path, contents);
+                    });
+                    result.complete(outputs);
+                    in.transferTo(OutputStream.nullOutputStream()); // Closing before the end would cancel the job
+                } catch (IOException | RuntimeException ex2) { // e.g. a bad path, or a failing listener
+                    result.completeExceptionally(ex2);
+                }
+            });
+            // The interrupted reader closes the response, which aborts the request, and the server cancels the job
+            result.whenComplete((r, ex2) -> { if (result.isCancelled()) reader.interrupt(); });
+            reader.start();
+        });
+        return result;
+    }
+
+    /**
+     * Cancels a future when another one is cancelled. Cancellation doesn't propagate from
+     * a dependent future to the future on which it depends. 
+     * @param dependent the future whose cancellation is propagated
+     * @param future the future to cancel
+     */
+    public static void cancelWith(CompletableFuture<?> dependent, CompletableFuture<?> future) {
+        dependent.whenComplete((r, ex) -> { if (dependent.isCancelled()) future.cancel(true); });
+    }
+
+    // Shared so that connections are pooled, and multiplexed with HTTP/2 when the server supports it
+    private static synchronized HttpClient httpClient() {
+        if (httpClient == null)
+            httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(FILE_UPLOAD_TIMEOUT))
+                .build();
+        return httpClient;
+    }
+
+    private static byte[] multipartBody(String boundary, String fieldName, String fileName, byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StringBuilder builder = new StringBuilder();
+        builder.append("--").append(boundary)
+            .append("\r\n")
+            .append("Content-Disposition: form-data; name=\"").append(fieldName)
+            .append("\"; filename=\"").append(fileName).append("\"")
+            .append("\r\n")
+            .append("Content-Type: ")
+            .append(URLConnection.guessContentTypeFromName(fileName))
+            .append("\r\n")
+            .append("Content-Transfer-Encoding: binary")
+            .append("\r\n")
+            .append("\r\n");
+        out.writeBytes(builder.toString().getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(bytes);
+        builder.delete(0,  builder.length());
+        builder.append("\r\n\r\n--").append(boundary).append("--\r\n");
+        out.writeBytes(builder.toString().getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
     
     public static String httpPost(String urlString, String content, String contentType) {
         StringBuilder result = new StringBuilder();
@@ -52,12 +52,22 @@ public class JavaLanguage implements Language {
            .filter(l -> l.trim().startsWith("import "))
            .forEach(l -> lines.add(l));
         lines.add("public class " + className + "CodeCheck {"); 
+        lines.add("    public static final int _CALLS = " + calls.size() + ";");
         lines.add("    public static void main(String[] args) throws Exception");
         lines.add("    {");
+        lines.add("        if (args[0].equals(\"all\"))");
+        lines.add("           _callAll(args[1], Long.parseLong(args[2]), Integer.parseInt(args[3]), args.length > 4 ? Integer.parseInt(args[4]) : 1);");
+        lines.add("        else _call(args[0]);");
+        lines.add("    }");
+        // Exceptions are reported here, so that the output is the same when the calls are made by comrun/bin/JavaWorker.java
+        lines.add("    public static void _call(String k)");
+        lines.add("    {");
+        lines.add("      try");
+        lines.add("      {");
          for (int k = 0; k < calls.size(); k++) {
              Calls.Call call = calls.get(k);
              boolean isStatic = call.modifiers.contains("static");
-            lines.add("        if (args[0].equals(\"" + (k + 1) + "\"))");
+            lines.add("        if (k.equals(\"" + (k + 1) + "\"))");
             lines.add("        {");
              if (!isStatic) {
                 lines.add("            " + className + " obj1 = new " + className
@@ -69,6 +79,102 @@ public class JavaLanguage implements Language {
             lines.add("            System.out.println(_toString(result));");
             lines.add("        }");
         }
+        lines.add("      }");
+        lines.add("      catch (Throwable ex)");
+        lines.add("      {");
+        lines.add("         String prefix = \"Exception in thread \\\"main\\\" \";");
+        lines.add("         for (Throwable t = ex; t != null; t = t.getCause(), prefix = \"Caused by: \")");
+        lines.add("         {");
+        lines.add("            System.out.println(prefix + t);");
+        lines.add("            for (StackTraceElement e : t.getStackTrace())");
+        lines.add("            {");
+        lines.add("               System.out.println(\"\\tat \" + e);");
+        lines.add("               if (e.getMethodName().equals(\"_call\")) break;");
+        lines.add("            }");
+        lines.add("         }");
+        lines.add("      }");
+        lines.add("    }");
+        // Each call gets a fresh class loader so that it sees the same static state as in a process of its own, and
+        // an output of its own, with its share of the lines, so that the threads that it leaves behind can't write into
+        // the output of another call. When a call times out or exits the JVM, the tester stops with a non-zero status,
+        // and comrun/bin/preload.sh runs the calls after it in a new tester, with the first of them as the last argument.
+        lines.add("    private static final java.io.PrintStream _stdout = System.out;");
+        lines.add("    private static int _running; // the running call, or 0");
+        lines.add("    private static _CallOutput _output;");
+        lines.add("    private static int _maxLines;");
+        lines.add("    private static void _callAll(String delimiter, long timeout, int maxLines, int first) throws Exception");
+        lines.add("    {");
+        lines.add("      String[] path = System.getProperty(\"java.class.path\").split(java.io.File.pathSeparator);");
+        lines.add("      java.net.URL[] urls = new java.net.URL[path.length];");
+        lines.add("      for (int i = 0; i < path.length; i++) urls[i] = java.nio.file.Path.of(path[i]).toUri().toURL();");
+        lines.add("      _maxLines = maxLines;");
+        lines.add("      System.setOut(_CallOutput.out);");
+        lines.add("      System.setErr(_CallOutput.out);");
+        lines.add("      Runtime.getRuntime().addShutdownHook(new Thread(" + className + "CodeCheck::_exited));");
+        lines.add("      for (int k = first; k <= _CALLS; k++)");
+        lines.add("      {");
+        lines.add("         _stdout.println(delimiter + \" \" + k);");
+        lines.add("         ClassLoader loader = new java.net.URLClassLoader(urls, ClassLoader.getPlatformClassLoader());");
+        lines.add("         java.lang.reflect.Method call = loader.loadClass(\"" + className + "CodeCheck\").getMethod(\"_call\", String.class);");
+        lines.add("         String arg = \"\" + k;");
+        lines.add("         _CallOutput output = new _CallOutput();");
+        lines.add("         _start(k, output);");
+        lines.add("         _CallOutput.current.set(output);");
+        lines.add("         Thread thread = new Thread(() -> {");
+        lines.add("            try { call.invoke(null, arg); }");
+        lines.add("            catch (ReflectiveOperationException ex) { ex.printStackTrace(System.out); }");
+        lines.add("         });");
+        lines.add("         _CallOutput.current.remove();");
+        lines.add("         thread.setDaemon(true);");
+        lines.add("         thread.start();");
+        lines.add("         thread.join(timeout);");
+        lines.add("         if (thread.isAlive())");
+        lines.add("         {");
+        lines.add("            output.open = false;");
+        lines.add("            _stdout.println(\"timeout: call \" + k + \" did not complete in \" + timeout + \" milliseconds\");");
+        lines.add("            _stdout.flush();");
+        lines.add("            Runtime.getRuntime().halt(124); // so that comrun/bin/preload.sh marks the timeout");
+        lines.add("         }");
+        lines.add("         _start(0, null);");
+        lines.add("         output.open = false;");
+        lines.add("      }");
+        lines.add("      _stdout.flush();");
+        lines.add("      System.exit(0);");
+        lines.add("    }");
+        lines.add("    private static synchronized void _start(int k, _CallOutput output)");
+        lines.add("    {");
+        lines.add("      _running = k;");
+        lines.add("      _output = output;");
+        lines.add("    }");
+        lines.add("    private static synchronized void _exited()");
+        lines.add("    {");
+        lines.add("      if (_running == 0) return;");
+        lines.add("      _output.open = false;");
+        lines.add("      _stdout.flush();");
+        lines.add("      Runtime.getRuntime().halt(1); // even if the call exited with 0");
+        lines.add("    }");
+        lines.add("    private static class _CallOutput extends java.io.OutputStream");
+        lines.add("    {");
+        lines.add("      static final InheritableThreadLocal<_CallOutput> current = new InheritableThreadLocal<>();");
+        lines.add("      static final java.io.PrintStream out = new java.io.PrintStream(new java.io.OutputStream() {");
+        lines.add("         public void write(int b) { write(new byte[] { (byte) b }, 0, 1); }");
+        lines.add("         public void write(byte[] b, int off, int len)");
+        lines.add("         {");
+        lines.add("            _CallOutput output = current.get();");
+        lines.add("            if (output != null) output.write(b, off, len);");
+        lines.add("         }");
+        lines.add("      }, true, java.nio.charset.Charset.forName(System.getProperty(\"stdout.encoding\", System.getProperty(\"file.encoding\"))));");
+        lines.add("      volatile boolean open = true;");
+        lines.add("      private int lines;");
+        lines.add("      public void write(int b) { write(new byte[] { (byte) b }, 0, 1); }");
+        lines.add("      public synchronized void write(byte[] b, int off, int len)");
+        lines.add("      {");
+        lines.add("         if (!open) return;");
+        lines.add("         int end = off;");
+        lines.add("         while (end < off + len && lines < _maxLines) if (b[end++] == '\\n') lines++;");
+        lines.add("         _stdout.write(b, off, end - off);");
+        lines.add("      }");
+        lines.add("      public void flush() { _stdout.flush(); }");
         lines.add("    }");
         lines.add("    private static String _toString(Object obj)");
         lines.add("    {");
@@ -86,6 +192,8 @@ public class JavaLanguage implements Language {
         testFiles.put(p, Util.join(lines, "\n"));
         return testFiles;
     }
+
+    @Override public boolean batchesCalls() { return true; }
     
     private static Pattern VARIABLE_DECL_PATTERN = Pattern.compile(
         	"((public|static|final|private|protected)\\s+)*[A-Za-z0-9_<>\\[\\]]+\\s+(?<name>\\p{javaJavaIdentifierStart}\\p{javaJavaIdentifierPart}*)\\s*=\\s*(?<rhs>[^;]+);");
@@ -179,6 +179,16 @@ public interface Language {
         return null;
     }
 
+    /**
+     * Reports whether the CALL tester can execute all calls in a single process. Such a tester
+     * is invoked with the arguments all, a delimiter, and the timeout of each call in milliseconds.
+     * It runs each call with that timeout, reports an exception of a call as the output of that call,
+     * and precedes the output of the kth call (starting with 1) with a line containing the delimiter,
+     * a space, and k. Otherwise, the tester is invoked once for each call, with k as the argument.
+     * @return true if the tester of this language batches the calls
+     */
+    default boolean batchesCalls() { return false; }
+
     default String[] pseudoCommentDelimiters() { return new String[] { "//", "" }; }
 
     /**
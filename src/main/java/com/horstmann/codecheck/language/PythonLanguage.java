@@ -57,19 +57,75 @@ public class PythonLanguage implements Language {
     public Map<Path, String> writeTester(Path file, String contents, List<Calls.Call> calls, ResourceLoader resourceLoader) {
         String moduleName = moduleOf(file);
         List<String> lines = new ArrayList<>();
-        int i = 0;
-        lines.add(i++, "from sys import argv");
-        lines.add(i++, "import " + moduleName);        
-        lines.add(i++, "def main() :");
+        String globalName = moduleName.split("\\.")[0];
+        lines.add("from sys import argv");
+        lines.add("import importlib, sys");
+        // Reloading the module for each call gives it the same module state as in a process of its own
+        lines.add("def load() :");
+        lines.add("    global " + globalName);
+        lines.add("    if \"" + moduleName + "\" in sys.modules :");
+        lines.add("        importlib.reload(" + moduleName + ")");
+        lines.add("    else :");
+        lines.add("        import " + moduleName);
+        lines.add("def call(k) :");
         for (int k = 0; k < calls.size(); k++) {
             Calls.Call call = calls.get(k);
-            lines.add(i++, 
-                    "    if argv[1] == \"" + (k + 1) + "\" :");
-            lines.add(i++, 
-                    "        result = " + moduleName + "." + call.name + "("  + call.args + ")");
-            lines.add(i++, 
-                    "        print(result)");
+            lines.add("    if k == \"" + (k + 1) + "\" :");
+            lines.add("        result = " + moduleName + "." + call.name + "("  + call.args + ")");
+            lines.add("        print(result)");
         }
+        lines.add("class CallTimeout(BaseException) :");
+        lines.add("    pass");
+        // Each call writes up to its share of the lines, as it would in a process of its own
+        lines.add("class CallOutput :");
+        lines.add("    def __init__(self, out, lines) :");
+        lines.add("        self.out = out");
+        lines.add("        self.lines = lines");
+        lines.add("    def write(self, s) :");
+        lines.add("        end = 0");
+        lines.add("        while end < len(s) and self.lines > 0 :");
+        lines.add("            newline = s.find(\"\\n\", end)");
+        lines.add("            if newline < 0 :");
+        lines.add("                end = len(s)");
+        lines.add("            else :");
+        lines.add("                end = newline + 1");
+        lines.add("                self.lines -= 1");
+        lines.add("        self.out.write(s[:end])");
+        lines.add("        return len(s)");
+        lines.add("    def flush(self) :");
+        lines.add("        self.out.flush()");
+        lines.add("def callAll(delimiter, timeout, maxlines) :");
+        lines.add("    import signal, traceback");
+        lines.add("    def expire(signum, frame) :");
+        lines.add("        raise CallTimeout()");
+        lines.add("    signal.signal(signal.SIGALRM, expire)");
+        lines.add("    stdout, stderr = sys.stdout, sys.stderr");
+        lines.add("    status = 0");
+        lines.add("    for k in range(1, " + (calls.size() + 1) + ") :");
+        lines.add("        print(delimiter, k, flush=True)");
+        lines.add("        sys.stdout = sys.stderr = CallOutput(stdout, maxlines)");
+        lines.add("        signal.setitimer(signal.ITIMER_REAL, timeout / 1000)");
+        lines.add("        try :");
+        lines.add("            load()");
+        lines.add("            call(str(k))");
+        lines.add("        except SystemExit :");
+        lines.add("            pass");
+        lines.add("        except CallTimeout :");
+        lines.add("            print(\"timeout: call\", k, \"did not complete in\", timeout, \"milliseconds\", file=stdout)");
+        lines.add("            status = 124 # so that comrun/bin/preload.sh marks the timeout");
+        lines.add("        except BaseException :");
+        lines.add("            traceback.print_exc(file=sys.stdout)");
+        lines.add("        finally :");
+        lines.add("            signal.setitimer(signal.ITIMER_REAL, 0)");
+        lines.add("            sys.stdout, sys.stderr = stdout, stderr");
+        lines.add("            sys.stdout.flush()");
+        lines.add("    sys.exit(status)");
+        lines.add("def main() :");
+        lines.add("    if argv[1] == \"all\" :");
+        lines.add("        callAll(argv[2], int(argv[3]), int(argv[4]))");
+        lines.add("    else :");
+        lines.add("        load()");
+        lines.add("        call(argv[1])");
         lines.add("main()");
         Path p = pathOf(moduleName + "CodeCheck");        
         Map<Path, String> testFiles = new HashMap<>();
@@ -77,6 +133,8 @@ public class PythonLanguage implements Language {
         return testFiles;        
     }
 
+    @Override public boolean batchesCalls() { return true; }
+
     @Override
     public String[] pseudoCommentDelimiters() {
         return new String[] { "##", "" };
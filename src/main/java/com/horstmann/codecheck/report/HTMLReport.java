@@ -20,6 +20,7 @@ public class HTMLReport implements Report {
     protected StringBuilder builder;
     private List<String> footnotes = new ArrayList<>();
     private int metaOffset;
+    private int sentLength; // of the text after the metadata that getNewText returned
     private boolean hidden;
 
     // TODO: Directory
@@ -475,6 +476,17 @@ public class HTMLReport implements Report {
         return this;
     }
 
+    /**
+     * Gets the text that was added since the last call, so that the report can be
+     * sent in parts while it is produced. The parts start after the metadata in the
+     * head, which is still inserted after the first part.
+     */
+    public String getNewText() {
+        String result = builder.substring(metaOffset + sentLength);
+        sentLength = builder.length() - metaOffset;
+        return result;
+    }
+
     public HTMLReport comment(String key, String value) {
         String meta = "<meta name=\"" + attrEscape(key) + "\" content=\""
                 + attrEscape(value) + "\"/>\n";
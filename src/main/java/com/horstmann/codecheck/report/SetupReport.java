@@ -18,6 +18,12 @@ import com.horstmann.codecheck.checker.Util;
 import com.horstmann.codecheck.checker.Problem;
 
 public class SetupReport extends JSONReport {
+	/**
+	 * The version of the report format. Increment it when the report changes, so that
+	 * reports that were saved with a problem are computed again.
+	 */
+	public static final int VERSION = 1;
+
 	private Problem problem;
 	private Map<String, Object> attributes = new HashMap<>();
 	private List<Condition> conditions = new ArrayList<>();
@@ -2,12 +2,18 @@ package controllers;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.horstmann.codecheck.checker.Cancellation;
 import com.horstmann.codecheck.checker.Util;
+import io.smallrye.common.annotation.RunOnVirtualThread;
+import io.vertx.core.http.HttpServerRequest;
 import jakarta.enterprise.context.RequestScoped;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.*;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseEventSink;
 import services.CodeCheck;
+import services.GradingQueue;
 import services.ServiceException;
 
 import javax.script.ScriptException;
@@ -19,12 +25,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
+/*
+ * The grading endpoints run on virtual threads since they wait for comrun for up to
+ * a minute. A waiting virtual thread doesn't hold on to a worker thread.
+ */
 @RequestScoped
 @jakarta.ws.rs.Path("/")
 public class CheckController {
     @Inject
     services.Check checkService;
 
+    @RunOnVirtualThread
     @POST
     @jakarta.ws.rs.Path("/run")
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
@@ -46,6 +57,7 @@ public class CheckController {
         }
     }
 
+    @RunOnVirtualThread
     @POST
     @jakarta.ws.rs.Path("/run")
     @Consumes(MediaType.MULTIPART_FORM_DATA)
@@ -65,6 +77,7 @@ public class CheckController {
         }
     }
 
+    @RunOnVirtualThread
     @POST
     @jakarta.ws.rs.Path("/run")
     @Consumes(MediaType.APPLICATION_JSON)
@@ -78,20 +91,52 @@ public class CheckController {
         }
     }
 
+    @RunOnVirtualThread
     @POST
     @jakarta.ws.rs.Path("/checkNJS")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response checkNJS(JsonNode json, @CookieParam("ccid") String ccid) throws ScriptException, IOException, InterruptedException, NoSuchMethodException {
+    public Response checkNJS(JsonNode json, @CookieParam("ccid") String ccid, @Context HttpServerRequest request) 
+            throws ScriptException, IOException, InterruptedException, NoSuchMethodException {
         try {
+            Cancellation cancellation = HttpUtil.cancelOnDisconnect(request);
             if (ccid == null) ccid = Util.createPronouncableUID();
-            ObjectNode result = checkService.checkNJS(json, ccid);
+            ObjectNode result = checkService.checkNJS(json, ccid, null, cancellation);
             return Response.ok(result).cookie(HttpUtil.buildCookie("ccid", ccid)).build();
         } catch (ServiceException e) {
             return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
         }
     }
 
+    /*
+     * Like checkNJS, but sends server-sent events: a "progress" event with the next part 
+     * of the report HTML (as a JSON string) whenever results come in, and then a "report" 
+     * event with the same JSON as checkNJS, or an "error" event with a JSON string.
+     */
+    @RunOnVirtualThread
+    @POST
+    @jakarta.ws.rs.Path("/checkNJS/stream")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    public void checkNJSStream(JsonNode json, @CookieParam("ccid") String ccid, 
+            @Context SseEventSink sink, @Context Sse sse, @Context HttpServerRequest request) 
+            throws ScriptException, IOException, InterruptedException, NoSuchMethodException {
+        try {
+            Cancellation cancellation = HttpUtil.cancelOnDisconnect(request);
+            if (ccid == null) ccid = Util.createPronouncableUID();
+            ObjectNode result = checkService.checkNJS(json, ccid, 
+                // Called on this thread. Each event is sent before the next one, so that they arrive in order.
+                html -> sink.send(sse.newEvent("progress", Util.toJsonString(html))).toCompletableFuture().join(), 
+                cancellation);
+            sink.send(sse.newEvent("report", result.toString())).toCompletableFuture().join();
+        } catch (ServiceException | GradingQueue.SaturatedException e) {
+            sink.send(sse.newEvent("error", Util.toJsonString(e.getMessage()))).toCompletableFuture().join();
+        } finally {
+            sink.close();
+        }
+    }
+
+    @RunOnVirtualThread
     @GET
     @jakarta.ws.rs.Path("/setupData/{repo}/{problem}")
     @Produces(MediaType.APPLICATION_JSON)
@@ -106,6 +151,7 @@ public class CheckController {
         }
     }
 
+    @RunOnVirtualThread
     @GET
     @jakarta.ws.rs.Path("/setupData/{problem}")
     @Produces(MediaType.APPLICATION_JSON)
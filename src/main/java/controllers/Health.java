@@ -1,5 +1,7 @@
 package controllers;
 
+import com.horstmann.codecheck.checker.ComrunPool;
+import com.horstmann.codecheck.checker.ComrunScheduler;
 import com.horstmann.codecheck.checker.Util;
 import jakarta.enterprise.context.RequestScoped;
 import jakarta.inject.Inject;
@@ -7,6 +9,9 @@ import jakarta.ws.rs.GET;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import services.CodeCheck;
+import services.GradingQueue;
+import services.ReportCache;
 
 import java.net.URI;
 import java.util.regex.Matcher;
@@ -17,6 +22,12 @@ import java.util.regex.Pattern;
 public class Health {
     @Inject
     private Config config;
+    @Inject
+    private CodeCheck codeCheck;
+    @Inject
+    private ReportCache reportCache;
+    @Inject
+    private GradingQueue gradingQueue;
     private Pattern dfPattern = Pattern.compile("(?s:.*?(?<percent>[0-9]+)%.*)");
 
     @GET
@@ -46,6 +57,11 @@ public class Health {
             responseText += "Profile: " + config.getProperty("quarkus.profile") + "\n";
             responseText += "quarkus.http.cors: " + config.getProperty("quarkus.http.cors") + "\n";
             responseText += "quarkus.http.cors.origins: " + config.getProperty("quarkus.http.cors.origins") + "\n";
+            responseText += "Problem cache: " + codeCheck.getProblemCache().getStatistics() + "\n";
+            responseText += "Report cache: " + reportCache.getStatistics() + "\n";
+            responseText += "Grading queue: " + gradingQueue.getStatistics() + "\n";
+            responseText += "Coalesced jobs: " + ComrunScheduler.getCoalescedJobs() + "\n";
+            responseText += "Comrun pools:\n" + ComrunPool.getAllStatistics();
             return Response.ok(responseText).build();
         }
         else return Response.ok("df output doesn't match pattern: " + df).build();
@@ -1,9 +1,13 @@
 package controllers;
 
+import com.horstmann.codecheck.checker.Cancellation;
+import io.vertx.core.http.HttpServerRequest;
 import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MultivaluedMap;
 import jakarta.ws.rs.core.NewCookie;
+import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.UriInfo;
+import services.GradingQueue;
 
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -44,6 +48,22 @@ public class HttpUtil {
         return prefix;
     }
 
+    /**
+     * @return a cancellation that is cancelled when the client closes the connection
+     * before the response has been sent
+     */
+    public static Cancellation cancelOnDisconnect(HttpServerRequest request) {
+        Cancellation cancellation = new Cancellation();
+        request.response().closeHandler(v -> cancellation.cancel());
+        return cancellation;
+    }
+
+    public static Response tooManyRequests(GradingQueue.SaturatedException ex) {
+        return Response.status(Response.Status.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, ex.getRetryAfterSeconds())
+                .entity(ex.getMessage()).build();
+    }
+
     public static NewCookie buildCookie(String name, String value) {
         return new NewCookie.Builder(name)
                 .value(value)
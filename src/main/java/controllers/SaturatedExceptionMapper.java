@@ -0,0 +1,16 @@
+package controllers;
+
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.ext.ExceptionMapper;
+import jakarta.ws.rs.ext.Provider;
+import services.GradingQueue;
+
+// Rejects grading requests with 429 and a Retry-After header when the grading queue is full
+
+@Provider
+public class SaturatedExceptionMapper implements ExceptionMapper<GradingQueue.SaturatedException> {
+    @Override
+    public Response toResponse(GradingQueue.SaturatedException ex) {
+        return HttpUtil.tooManyRequests(ex);
+    }
+}
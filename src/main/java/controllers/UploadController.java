@@ -43,6 +43,8 @@ public class UploadController {
             String response = uploadService.checkAndSaveProblem(HttpUtil.prefix(uriInfo, headers),
                     problem, problemFiles, editKey);
             return Response.ok(response).build();
+        } catch (services.GradingQueue.SaturatedException ex) {
+            return HttpUtil.tooManyRequests(ex);
         } catch (Exception ex) {
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
                     .entity(Util.getStackTrace(ex)).build();
@@ -67,6 +69,8 @@ public class UploadController {
             byte[] problemZip = part.readAllBytes();
             String response = uploadService.checkAndSaveProblem(HttpUtil.prefix(uriInfo, headers), problem, problemZip, editKey);
             return Response.ok(response).type(MediaType.TEXT_HTML).build();
+        } catch (services.GradingQueue.SaturatedException ex) {
+            return HttpUtil.tooManyRequests(ex);
         } catch (Exception ex) {
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(Util.getStackTrace(ex)).build();
         }
@@ -104,6 +108,8 @@ public class UploadController {
             String editKey = params.get("editKey").asText(null);
             ObjectNode responseJSON = uploadService.checkProblem(HttpUtil.prefix(uriInfo, headers), problemFiles, problemID, editKey);
             return Response.ok(responseJSON).build();
+        } catch (services.GradingQueue.SaturatedException ex) {
+            return HttpUtil.tooManyRequests(ex);
         } catch (Exception ex) {
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
                     .entity(Util.getStackTrace(ex)).build();
@@ -9,6 +9,9 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
@@ -17,17 +20,21 @@ import javax.script.ScriptException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.horstmann.codecheck.checker.Cancellation;
 import com.horstmann.codecheck.checker.Util;
 
 @ApplicationScoped
 public class Check {
     @Inject private CodeCheck codeCheck;
+    @Inject private GradingQueue gradingQueue;
+    private Map<String, Cancellation> runningChecks = new ConcurrentHashMap<>(); // "ccid repo/problem" -> cancellation
 
     // TODO: Legacy HTML report, used in Core Java for the Impatient 2e, 3e
     public String checkHTML(String repo, String problem, String ccid, Map<Path, String> submissionFiles)
             throws NoSuchMethodException, IOException, InterruptedException, ScriptException {
         long startTime = System.nanoTime();
-        String report = codeCheck.run("HTML", repo, problem, ccid, submissionFiles);
+        String report = gradingQueue.submit(GradingQueue.Priority.GRADED,
+            () -> codeCheck.run("HTML", repo, problem, ccid, submissionFiles));
         if (report == null || report.length() == 0) {
             double elapsed = (System.nanoTime() - startTime) / 1000000000.0;
             report = String.format("Timed out after %5.0f seconds\n", elapsed);
@@ -39,7 +46,8 @@ public class Check {
     public String run(Map<Path, String> submissionFiles)
             throws NoSuchMethodException, IOException, InterruptedException, ScriptException {
         long startTime = System.nanoTime();
-        String report = codeCheck.run("Text", submissionFiles);
+        String report = gradingQueue.submit(GradingQueue.Priority.INTERACTIVE,
+            () -> codeCheck.run("Text", submissionFiles));
         double elapsed = (System.nanoTime() - startTime) / 1000000000.0;
         if (report == null || report.length() == 0) {
             report = String.format("Timed out after %5.0f seconds\n", elapsed);
@@ -56,13 +64,25 @@ public class Check {
             Entry<String, JsonNode> entry = iter.next();
             submissionFiles.put(Paths.get(entry.getKey()), entry.getValue().asText());         
         };
-        String report = codeCheck.run("JSON", submissionFiles);
+        String report = gradingQueue.submit(GradingQueue.Priority.INTERACTIVE,
+            () -> codeCheck.run("JSON", submissionFiles));
         return Util.fromJsonString(report);
     }
 
     // From JS UI
     public ObjectNode checkNJS(JsonNode json, String ccid)
             throws NoSuchMethodException, IOException, InterruptedException, ScriptException {
+        return checkNJS(json, ccid, null, new Cancellation());
+    }
+
+    /**
+     * @param progress receives parts of the report HTML as results come in, or null
+     * @param cancellation cancels the check, such as when the client went away
+     * @throws ServiceException if the check was cancelled, with the given cancellation
+     * or by a newer check for the same ccid and problem
+     */
+    public ObjectNode checkNJS(JsonNode json, String ccid, Consumer<String> progress, Cancellation cancellation)
+            throws NoSuchMethodException, IOException, InterruptedException, ScriptException {
         String repo = CodeCheck.DEFAULT_REPO;
         String problem = null;
         Map<Path, String> submissionFiles = new TreeMap<>();
@@ -83,7 +103,22 @@ public class Check {
             }
         }
 
-        String report = codeCheck.run("NJS", repo, problem, ccid, submissionFiles);
+        String repoName = repo;
+        String problemName = problem;
+        // A newer submission of the same student for the same problem cancels this one
+        String key = ccid + " " + repo + "/" + problem;
+        Cancellation previous = runningChecks.put(key, cancellation);
+        if (previous != null) previous.cancel();
+        String report;
+        try {
+            report = gradingQueue.submit(GradingQueue.Priority.GRADED,
+                () -> codeCheck.run("NJS", repoName, problemName, ccid, submissionFiles, progress, cancellation),
+                cancellation);
+        } catch (CancellationException ex) {
+            throw new ServiceException("The check was cancelled");
+        } finally {
+            runningChecks.remove(key, cancellation);
+        }
         ObjectNode result = Util.fromJsonString(report);
         String reportHTML = result.get("report").asText();
         reportZipFiles.put(Paths.get("report.html"), reportHTML.getBytes(StandardCharsets.UTF_8));
@@ -97,15 +132,9 @@ public class Check {
     // For JS client
     public String setupReport(String repo, String problem, String ccid)
             throws NoSuchMethodException, IOException, InterruptedException, ScriptException {
-        Map<Path, String> submissionFiles = new TreeMap<>();
-        Map<Path, byte[]> problemFiles = codeCheck.loadProblem(repo, problem, ccid);
-        for (Path key : problemFiles.keySet()) {
-            String value = new String(problemFiles.get(key));
-            if (key.startsWith("solution")) key = key.subpath(1, key.getNameCount());
-            submissionFiles.put(key, value);
-        }
         long startTime = System.nanoTime();         
-        String report = codeCheck.run("Setup", repo, problem, ccid, submissionFiles);
+        String report = gradingQueue.submit(GradingQueue.Priority.INTERACTIVE,
+            () -> codeCheck.setupReport(repo, problem, ccid));
         double elapsed = (System.nanoTime() - startTime) / 1000000000.0;
         if (report == null || report.length() == 0) {
             report = String.format("{ \"error\": \"Timed out after %5.0f seconds\"}", elapsed);
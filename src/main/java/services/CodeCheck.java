@@ -11,9 +11,13 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.KeyStore;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -26,11 +30,16 @@ import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.horstmann.codecheck.checker.Cancellation;
 import com.horstmann.codecheck.checker.Main;
 import com.horstmann.codecheck.checker.Plan;
 import com.horstmann.codecheck.checker.Problem;
 import com.horstmann.codecheck.checker.ResourceLoader;
 import com.horstmann.codecheck.checker.Util;
+import com.horstmann.codecheck.report.HTMLReport;
+import com.horstmann.codecheck.report.SetupReport;
 import controllers.Config;
 
 import jdk.security.jarsigner.JarSigner;
@@ -38,15 +47,35 @@ import jdk.security.jarsigner.JarSigner;
 @ApplicationScoped
 public class CodeCheck {
     public static final String DEFAULT_REPO = "ext";
+    private static final long DEFAULT_PROBLEM_CACHE_BYTES = 100_000_000;
+    private static final int MAX_SETUP_REPORTS = 10_000;
+    private static final Path SETUP_REPORT_DIR = Path.of("_setup");
+    private static final Path SETUP_REPORT_PATH = SETUP_REPORT_DIR.resolve("report-" + SetupReport.VERSION + ".json");
 
     private static Logger logger = System.getLogger("com.horstmann.codecheck");
     private StorageConnector storeConn;
     private ResourceLoader resourceLoader;
+    private ProblemCache problemCache;
+    private ReportCache reportCache;
+    private Map<String, String> setupReports = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_SETUP_REPORTS;
+        }
+    });
 
     @Inject
-    public CodeCheck(Config config, StorageConnector storeConn) {
+    public CodeCheck(Config config, StorageConnector storeConn, ReportCache reportCache) {
         this.storeConn = storeConn;
+        this.reportCache = reportCache;
         resourceLoader = config;
+        long problemCacheBytes = DEFAULT_PROBLEM_CACHE_BYTES;
+        if (config.hasPath("com.horstmann.codecheck.problemcache.maxbytes"))
+            problemCacheBytes = Long.parseLong(config.getString("com.horstmann.codecheck.problemcache.maxbytes"));
+        problemCache = new ProblemCache(problemCacheBytes);
+    }
+
+    public ProblemCache getProblemCache() {
+        return problemCache;
     }
 
     public Map<Path, byte[]> loadProblem(String repo, String problemName, String studentId) throws IOException, ScriptException, NoSuchMethodException {
@@ -116,35 +145,156 @@ public class CodeCheck {
     }
 
     public Map<Path, byte[]> loadProblem(String repo, String problemName) throws IOException {
-        Map<Path, byte[]> result;
+        String version = storeConn.readProblemVersion(repo, problemName);
+        if (version != null) {
+            Map<Path, byte[]> result = problemCache.getFiles(repo, problemName, version);
+            if (result != null) return result;
+        }
         byte[] zipFile = storeConn.readProblem(repo, problemName);
-        result = Util.unzip(zipFile);
+        Map<Path, byte[]> result = Util.unzip(zipFile);
+        if (version != null)
+            result = problemCache.putFiles(repo, problemName, version, result);
         return result;
     }
 
+    /**
+     * Parses problem files that were obtained from loadProblem, reusing the cached
+     * Problem object unless the files were rewritten with parameters.
+     */
+    public Problem parseProblem(String repo, String problemName, Map<Path, byte[]> problemFiles) throws IOException {
+        if (problemFiles.containsKey(Path.of("param.js")))
+            return new Problem(problemFiles);
+        return problemCache.getProblem(repo, problemName, problemFiles);
+    }
+
     public void saveProblem(String repo, String problem, Map<Path, byte[]> problemFiles) throws IOException {
         byte[] problemZip = Util.zip(problemFiles);
+        problemCache.invalidate(repo, problem);
         storeConn.writeProblem(problemZip, repo, problem);
     }
 
     public String run(String reportType, String repo,
                       String problem, String ccid, Map<Path, String> submissionFiles)
             throws IOException, InterruptedException, NoSuchMethodException, ScriptException {
+        return run(reportType, repo, problem, ccid, submissionFiles, null, null);
+    }
+
+    /**
+     * @param progress receives the HTML that has been added to the report whenever 
+     * results come in, or null. Not called when the report is cached.
+     * The report is cached with placeholders for the values that differ for each check
+     * (see Main.Stamp), and they are filled in for each check, cached or not.
+     * @param cancellation cancels the check, or null
+     * @throws CancellationException if the check was cancelled
+     */
+    public String run(String reportType, String repo,
+                      String problem, String ccid, Map<Path, String> submissionFiles, Consumer<String> progress,
+                      Cancellation cancellation)
+            throws IOException, InterruptedException, NoSuchMethodException, ScriptException {
         Map<Path, byte[]> problemFiles = loadProblem(repo, problem, ccid);
-        // Save solution outputs if not parametric and doesn't have already have solution output
-        boolean save = !problemFiles.containsKey(Path.of("param.js")) &&
-                !problemFiles.keySet().stream().anyMatch(p -> p.startsWith("_outputs"));
+        String problemDigest = problemFiles.containsKey(Path.of("param.js"))
+            ? ProblemCache.digest(problemFiles) : problemCache.getDigest(repo, problem, problemFiles);
+        String key = ReportCache.key(reportType, repo, problem, ccid, problemDigest, submissionFiles);
+        Main.Stamp stamp = new Main.Stamp();
+        String report = reportCache.get(key);
+        if (report != null) return stamp.apply(report);
+        boolean saveOutputs = needsSolutionOutputs(problemFiles);
+        Plan plan = run(reportType, repo, problem, ccid, problemFiles, submissionFiles,
+            progress == null ? null : text -> progress.accept(stamp.apply(text)), true, cancellation);
+        if (saveOutputs) {
+            plan.writeSolutionOutputs(problemFiles);
+            saveProblem(repo, problem, problemFiles);
+        }
+        report = plan.getReport().getText();
+        if (plan.isCacheable()) reportCache.put(key, report);
+        return stamp.apply(report);
+    }
+
+    /**
+     * @param placeholders true if the report gets placeholders for the values that
+     * differ for each check
+     */
+    private Plan run(String reportType, String repo, String problem, String ccid,
+                     Map<Path, byte[]> problemFiles, Map<Path, String> submissionFiles, Consumer<String> progress,
+                     boolean placeholders, Cancellation cancellation)
+            throws IOException, InterruptedException, NoSuchMethodException, ScriptException {
         Properties metaData = new Properties();
         metaData.put("User", ccid);
         metaData.put("Problem", (repo + "/" + problem).replaceAll("[^\\pL\\pN_/-]", ""));
 
-        Plan plan = new Main().run(submissionFiles, problemFiles, reportType, metaData, resourceLoader);
-        if (save) {
-            plan.writeSolutionOutputs(problemFiles);
+        Problem parsedProblem = parseProblem(repo, problem, problemFiles);
+        Main main = new Main().setPlaceholders(placeholders).setCancellation(cancellation);
+        if (progress != null) 
+            main.setProgressListener(report -> {
+                if (report instanceof HTMLReport htmlReport) progress.accept(htmlReport.getNewText());
+            });
+        Plan plan = main.run(submissionFiles, problemFiles, parsedProblem, reportType, metaData, resourceLoader);
+        // Don't save or cache partial outputs
+        if (Thread.interrupted()) throw new InterruptedException("Check cancelled");
+        if (cancellation != null) cancellation.check();
+        return plan;
+    }
+
+    /**
+     * Solution outputs are saved with a problem if it is not parametric and doesn't 
+     * already have them.
+     */
+    private static boolean needsSolutionOutputs(Map<Path, byte[]> problemFiles) {
+        return !problemFiles.containsKey(Path.of("param.js")) &&
+                !problemFiles.keySet().stream().anyMatch(p -> p.startsWith("_outputs"));
+    }
+
+    /**
+     * Produces the report for setting up the JS client, which only depends on the problem
+     * and, for parametric problems, on the seed. The report of a non-parametric problem is
+     * saved with the problem, together with the solution outputs if it doesn't have them yet,
+     * under a name that includes the version of the report format. Reports of parametric
+     * problems are kept in memory, keyed by the digest of the problem files after parameter
+     * replacement.
+     */
+    public String setupReport(String repo, String problem, String ccid)
+            throws IOException, InterruptedException, NoSuchMethodException, ScriptException {
+        Map<Path, byte[]> problemFiles = loadProblem(repo, problem, ccid);
+        boolean isParametric = problemFiles.containsKey(Path.of("param.js"));
+        if (!isParametric && problemFiles.containsKey(SETUP_REPORT_PATH))
+            return Util.getString(problemFiles, SETUP_REPORT_PATH);
+        String key = null;
+        if (isParametric) {
+            key = repo + "/" + problem + "/" + Util.digest(problemFiles);
+            String report = setupReports.get(key);
+            if (report != null) return report;
+        }
+
+        Map<Path, String> submissionFiles = new TreeMap<>();
+        for (Path p : problemFiles.keySet()) {
+            String value = new String(problemFiles.get(p));
+            if (p.startsWith("solution")) p = p.subpath(1, p.getNameCount());
+            submissionFiles.put(p, value);
+        }
+        boolean saveOutputs = needsSolutionOutputs(problemFiles);
+        Plan plan = run("Setup", repo, problem, ccid, problemFiles, submissionFiles, null, false, null);
+        String report = plan.getReport().getText();
+        boolean saveReport = report != null && !report.isEmpty() && !hasErrors(Util.fromJsonString(report));
+        if (isParametric) {
+            if (saveReport) setupReports.put(key, report);
+        } else if (saveOutputs || saveReport) {
+            if (saveOutputs) plan.writeSolutionOutputs(problemFiles);
+            if (saveReport) {
+                // Reports in an older format are replaced
+                problemFiles.keySet().removeIf(p -> p.startsWith(SETUP_REPORT_DIR));
+                Util.putString(problemFiles, SETUP_REPORT_PATH, report);
+            }
             saveProblem(repo, problem, problemFiles);
         }
+        return report;
+    }
 
-        return plan.getReport().getText();
+    private static boolean hasErrors(ObjectNode report) {
+        if (report.has("errors")) return true;
+        if (report.has("sections"))
+            for (JsonNode section : report.get("sections"))
+                if (section.has("errors")) return true;
+        return false;
     }
 
     /**
@@ -183,6 +333,7 @@ public class CodeCheck {
 
         Properties metaData = new Properties();
         Plan plan = new Main().run(submissionFiles, problemFiles, "html", metaData, resourceLoader);
+        if (Thread.interrupted()) throw new InterruptedException("Check cancelled");
         if (!isParametric)
             plan.writeSolutionOutputs(problemFiles);
         saveProblem(DEFAULT_REPO, problem, originalProblemFiles);
@@ -2,8 +2,6 @@ package services;
 
 import java.io.IOException;
 import java.lang.System.Logger;
-import java.net.URI;
-import java.net.URL;
 import java.nio.file.Path;
 import java.text.MessageFormat;
 import java.util.List;
@@ -13,6 +11,7 @@ import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.horstmann.codecheck.checker.ComrunPool;
 import com.horstmann.codecheck.checker.Problem;
 import com.horstmann.codecheck.checker.Util;
 
@@ -60,7 +59,7 @@ public class Files {
         	return tracer(repo, problemName, ccid);
 
         wakeupChecker();
-        Problem problem = new Problem(problemFiles);
+        Problem problem = codeCheck.parseProblem(repo, problemName, problemFiles);
         ObjectNode data = Util.toJson(problem.getProblemData());
         data.put("url",  url + "/checkNJS");
         data.put("repo", repo);
@@ -109,7 +108,7 @@ public class Files {
 	public String tracer(String repo, String problemName, String ccid) throws IOException, ScriptException, NoSuchMethodException {
         Map<Path, byte[]> problemFiles = codeCheck.loadProblem(repo, problemName, ccid);
         if (problemFiles == null) return null;
-		Problem problem = new Problem(problemFiles);
+		Problem problem = codeCheck.parseProblem(repo, problemName, problemFiles);
         Problem.DisplayData data = problem.getProblemData();
         StringBuilder result = new StringBuilder();
         result.append(tracerStart);
@@ -125,7 +124,7 @@ public class Files {
     public ObjectNode fileData(String repo, String problemName, String ccid) throws IOException, ScriptException, NoSuchMethodException {
         Map<Path, byte[]> problemFiles = codeCheck.loadProblem(repo, problemName, ccid);
         if (problemFiles == null) return null;
-        Problem problem = new Problem(problemFiles);
+        Problem problem = codeCheck.parseProblem(repo, problemName, problemFiles);
         return Util.toJson(problem.getProblemData());
     }
 
@@ -135,12 +134,7 @@ public class Files {
         if (!config.hasPath(path)) return;
         String remoteURL = config.getString(path);
         if (remoteURL.isBlank()) return;
-        new Thread(() -> { try {                        
-            URL checkerWakeupURL = URI.create(remoteURL + "/api/health").toURL();
-            checkerWakeupURL.openStream().readAllBytes();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } }).start();
+        ComrunPool.of(remoteURL).checkHealth();
     }
 
     /* TODO: Legacy, also codecheck.js
@@ -0,0 +1,197 @@
+package services;
+
+import java.io.IOException;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import javax.script.ScriptException;
+
+import com.horstmann.codecheck.checker.Cancellation;
+import com.horstmann.codecheck.checker.ComrunPool;
+import com.horstmann.codecheck.checker.ResourceLoader;
+
+import controllers.Config;
+
+/**
+ * Admission control for grading jobs. At most com.horstmann.codecheck.queue.concurrency
+ * jobs per comrun node, counting the nodes of the pools of all languages, are in
+ * progress. Further jobs wait, highest priority first, in a
+ * queue of at most com.horstmann.codecheck.queue.capacity jobs. When the queue is full,
+ * jobs are rejected right away with a SaturatedException, which is reported as
+ * 429 Too Many Requests, instead of piling up until they time out. Jobs that the
+ * comrun nodes reject because their own queues are full end in the same way.
+ */
+@ApplicationScoped
+public class GradingQueue {
+    private static final int DEFAULT_CONCURRENCY = 8;
+    private static final int DEFAULT_CAPACITY = 200;
+    private static final double SMOOTHING = 0.1;
+
+    /**
+     * In decreasing order of priority: checks of assigned and legacy problems,
+     * interactive runs and setup, problem uploads.
+     */
+    public enum Priority { GRADED, INTERACTIVE, BULK }
+
+    public interface Job<T> {
+        T call() throws IOException, InterruptedException, NoSuchMethodException, ScriptException;
+    }
+
+    public static class SaturatedException extends RuntimeException {
+        private int retryAfterSeconds;
+
+        public SaturatedException(int retryAfterSeconds) {
+            super("Too many grading requests. Try again in " + retryAfterSeconds + " seconds.");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public int getRetryAfterSeconds() { return retryAfterSeconds; }
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        Priority priority;
+        long sequence;
+        long enqueued = System.nanoTime();
+        CompletableFuture<Void> admitted = new CompletableFuture<>();
+
+        Waiter(Priority priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Waiter other) {
+            int diff = priority.compareTo(other.priority);
+            return diff != 0 ? diff : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private int concurrency;
+    private int capacity;
+    private int running;
+    private long sequence;
+    private PriorityQueue<Waiter> waiting = new PriorityQueue<>();
+    private long admitted;
+    private long rejected;
+    private double meanWaitMillis; // exponentially smoothed
+    private double meanJobMillis; // exponentially smoothed
+
+    @Inject public GradingQueue(Config config) {
+        this(intProperty(config, "com.horstmann.codecheck.queue.concurrency", DEFAULT_CONCURRENCY) * nodes(config),
+            intProperty(config, "com.horstmann.codecheck.queue.capacity", DEFAULT_CAPACITY));
+    }
+
+    /**
+     * @param concurrency the number of jobs in progress, for all nodes
+     * @param capacity the number of waiting jobs
+     */
+    GradingQueue(int concurrency, int capacity) {
+        this.concurrency = concurrency;
+        this.capacity = capacity;
+    }
+
+    private static int intProperty(Config config, String key, int defaultValue) {
+        return config.hasPath(key) ? Integer.parseInt(config.getString(key)) : defaultValue;
+    }
+
+    /**
+     * @return the number of comrun nodes in all pools, or 1 if the jobs are executed
+     * on this host, by an embedded or local comrun
+     */
+    static int nodes(ResourceLoader config) {
+        if (config.getProperty("com.horstmann.codecheck.comrun.embedded") != null) return 1; // used instead of the pools
+        return Math.max(1, ComrunPool.nodeCount(config));
+    }
+
+    /**
+     * Runs a job when its turn comes.
+     * @throws SaturatedException if the queue is full
+     */
+    public <T> T submit(Priority priority, Job<T> job)
+            throws IOException, InterruptedException, NoSuchMethodException, ScriptException {
+        return submit(priority, job, null);
+    }
+
+    /**
+     * Runs a job like submit, unless the cancellation is cancelled while the job waits.
+     * @param cancellation the cancellation of the job, or null
+     * @throws CancellationException if the job was cancelled while waiting
+     */
+    public <T> T submit(Priority priority, Job<T> job, Cancellation cancellation)
+            throws IOException, InterruptedException, NoSuchMethodException, ScriptException {
+        acquire(priority, cancellation);
+        long start = System.nanoTime();
+        try {
+            return job.call();
+        } catch (ComrunPool.BusyException ex) {
+            synchronized (this) { rejected++; }
+            throw new SaturatedException(ex.getRetryAfterSeconds());
+        } finally {
+            release((System.nanoTime() - start) / 1_000_000.0);
+        }
+    }
+
+    private void acquire(Priority priority, Cancellation cancellation) throws InterruptedException {
+        if (cancellation != null) cancellation.check();
+        Waiter waiter;
+        synchronized (this) {
+            if (running < concurrency && waiting.isEmpty()) {
+                running++;
+                admitted++;
+                return;
+            }
+            if (waiting.size() >= capacity) {
+                rejected++;
+                throw new SaturatedException(retryAfterSeconds());
+            }
+            waiter = new Waiter(priority, sequence++);
+            waiting.add(waiter);
+        }
+        if (cancellation != null) cancellation.onCancel(() -> waiter.admitted.cancel(false));
+        try {
+            waiter.admitted.get();
+        } catch (ExecutionException ex) { // never completed exceptionally
+            throw new IllegalStateException(ex);
+        } catch (InterruptedException | CancellationException ex) {
+            synchronized (this) {
+                waiting.remove(waiter);
+            }
+            if (!waiter.admitted.cancel(false)) release(0); // was admitted in the meantime
+            throw ex;
+        }
+    }
+
+    private synchronized void release(double jobMillis) {
+        if (jobMillis > 0) meanJobMillis += SMOOTHING * (jobMillis - meanJobMillis);
+        Waiter next;
+        while ((next = waiting.poll()) != null) {
+            // The slot of the finished job passes to the next one, unless it was cancelled
+            if (next.admitted.complete(null)) {
+                admitted++;
+                meanWaitMillis += SMOOTHING * ((System.nanoTime() - next.enqueued) / 1_000_000.0 - meanWaitMillis);
+                return;
+            }
+        }
+        running--;
+    }
+
+    private int retryAfterSeconds() {
+        double millis = meanJobMillis * (waiting.size() / concurrency + 1);
+        return Math.max(1, (int) Math.ceil(millis / 1000));
+    }
+
+    private long oldestWaitMillis() {
+        long oldest = 0;
+        long now = System.nanoTime();
+        for (Waiter w : waiting) oldest = Math.max(oldest, (now - w.enqueued) / 1_000_000);
+        return oldest;
+    }
+
+    public synchronized String getStatistics() {
+        return String.format("running=%d/%d waiting=%d/%d admitted=%d rejected=%d meanWaitMillis=%.0f oldestWaitMillis=%d meanJobMillis=%.0f",
+            running, concurrency, waiting.size(), capacity, admitted, rejected, meanWaitMillis, oldestWaitMillis(), meanJobMillis);
+    }
+}
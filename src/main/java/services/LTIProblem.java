@@ -109,7 +109,7 @@ public class LTIProblem {
         // TODO: Now the client will do the LTI communication. CodeCheck should do it.
         ObjectNode ltiNode = ltiNode(url, postParams);
         Map<Path, byte[]> problemFiles = codeCheck.loadProblem(repo, problemName, ccid);
-        Problem problem = new Problem(problemFiles);
+        Problem problem = codeCheck.parseProblem(repo, problemName, problemFiles);
         Problem.DisplayData data = problem.getProblemData();
         ObjectNode problemNode = Util.toJson(data);
         problemNode.put("url", "/checkNJS"); 
@@ -187,7 +187,7 @@ public class LTIProblem {
         ObjectNode ltiNode = ltiNode(url, postParams);            
         Map<Path, byte[]> problemFiles = codeCheck.loadProblem(repo, problemName, ccid);
 
-        Problem problem = new Problem(problemFiles);
+        Problem problem = codeCheck.parseProblem(repo, problemName, problemFiles);
         StringBuilder result = new StringBuilder();
         Problem.DisplayData data = problem.getProblemData();            
         result.append(tracerStart);
@@ -0,0 +1,155 @@
+package services;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.horstmann.codecheck.checker.Problem;
+import com.horstmann.codecheck.checker.Util;
+
+/**
+ * A bounded cache of unzipped problem files and their parsed Problem objects.
+ * Entries are tagged with the storage version of the problem zip, so that a
+ * stale entry is never served, and evicted in least recently used order when
+ * the total size of the cached files exceeds the limit.
+ */
+public class ProblemCache {
+    private static class Entry {
+        String version;
+        Map<Path, byte[]> files;
+        Problem problem; // parsed on demand
+        String digest; // computed on demand
+        long size;
+    }
+
+    private final long maxBytes;
+    private long totalBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ProblemCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static String key(String repo, String problemName) {
+        return repo + "/" + problemName;
+    }
+
+    /**
+     * Gets the cached files of a problem
+     * @param version the current storage version of the problem
+     * @return a copy of the files, or null if they are not cached in this version
+     */
+    public synchronized Map<Path, byte[]> getFiles(String repo, String problemName, String version) {
+        Entry entry = entries.get(key(repo, problemName));
+        if (entry == null || !entry.version.equals(version)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new TreeMap<>(entry.files);
+    }
+
+    /**
+     * Caches the files of a problem, replacing any older version.
+     * @return a copy of the files
+     */
+    public synchronized Map<Path, byte[]> putFiles(String repo, String problemName, String version, Map<Path, byte[]> files) {
+        Entry entry = new Entry();
+        entry.version = version;
+        entry.files = new TreeMap<>(files);
+        for (byte[] contents : files.values()) entry.size += contents.length;
+        remove(key(repo, problemName));
+        if (entry.size <= maxBytes) {
+            entries.put(key(repo, problemName), entry);
+            totalBytes += entry.size;
+            Iterator<Entry> iter = entries.values().iterator();
+            while (totalBytes > maxBytes && iter.hasNext()) {
+                totalBytes -= iter.next().size;
+                iter.remove();
+                evictions++;
+            }
+        }
+        return new TreeMap<>(files);
+    }
+
+    /**
+     * Gets the parsed problem for the given files, provided that they were obtained
+     * from this cache.
+     * @return the cached problem, or a newly parsed one if the files are not those in the cache
+     */
+    public Problem getProblem(String repo, String problemName, Map<Path, byte[]> files) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key(repo, problemName));
+            if (entry != null && entry.problem != null && sameFiles(entry.files, files))
+                return entry.problem;
+        }
+        Problem problem = new Problem(files);
+        synchronized (this) {
+            if (entry != null && entries.get(key(repo, problemName)) == entry && sameFiles(entry.files, files))
+                entry.problem = problem;
+        }
+        return problem;
+    }
+
+    /**
+     * Gets the digest of the given files without the solution outputs and setup reports
+     * that are saved with the problem, reusing the one of the cached entry if the
+     * files were obtained from this cache.
+     */
+    public String getDigest(String repo, String problemName, Map<Path, byte[]> files) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key(repo, problemName));
+            if (entry != null && entry.digest != null && sameFiles(entry.files, files))
+                return entry.digest;
+        }
+        String digest = digest(files);
+        synchronized (this) {
+            if (entry != null && entries.get(key(repo, problemName)) == entry && sameFiles(entry.files, files))
+                entry.digest = digest;
+        }
+        return digest;
+    }
+
+    /**
+     * Digests the given files without _outputs and _setup, which change when the
+     * problem is checked or set up.
+     */
+    public static String digest(Map<Path, byte[]> files) {
+        Map<Path, byte[]> problemFiles = new TreeMap<>();
+        for (Map.Entry<Path, byte[]> entry : files.entrySet()) {
+            String first = entry.getKey().getName(0).toString();
+            if (!first.equals("_outputs") && !first.equals("_setup"))
+                problemFiles.put(entry.getKey(), entry.getValue());
+        }
+        return Util.digest(problemFiles);
+    }
+
+    private static boolean sameFiles(Map<Path, byte[]> cached, Map<Path, byte[]> files) {
+        if (cached.size() != files.size()) return false;
+        for (Map.Entry<Path, byte[]> entry : cached.entrySet())
+            if (files.get(entry.getKey()) != entry.getValue()) return false;
+        return true;
+    }
+
+    public synchronized void invalidate(String repo, String problemName) {
+        remove(key(repo, problemName));
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) totalBytes -= entry.size;
+    }
+
+    public synchronized String getStatistics() {
+        return String.format("entries=%d bytes=%d maxBytes=%d hits=%d misses=%d evictions=%d",
+            entries.size(), totalBytes, maxBytes, hits, misses, evictions);
+    }
+}
@@ -0,0 +1,193 @@
+package services;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.horstmann.codecheck.checker.Util;
+
+import controllers.Config;
+
+/**
+ * A cache of reports for submissions that have already been checked, so that
+ * pressing "Check" again on unchanged code doesn't go to comrun. Reports expire
+ * after a time to live. The store is selected with com.horstmann.codecheck.reportcache.type:
+ * memory (the default, bounded by size), storage (a table in the StorageConnector backend), or none.
+ * The reports contain placeholders for the values that differ for each check (see Main.Stamp).
+ * A failure of the store is logged, and the check proceeds as if the report wasn't cached.
+ */
+@ApplicationScoped
+public class ReportCache {
+    private static final long DEFAULT_TTL_SECONDS = 3600;
+    private static final long DEFAULT_MAX_BYTES = 50_000_000;
+    private static final String FORMAT = "2"; // with the placeholders of Main.Stamp
+
+    private static Logger logger = System.getLogger("com.horstmann.codecheck");
+    private ReportStore delegate;
+    private long ttlSeconds = DEFAULT_TTL_SECONDS;
+    private long hits;
+    private long misses;
+
+    @Inject public ReportCache(Config config, StorageConnector storeConn) {
+        String type = "memory";
+        if (config.hasPath("com.horstmann.codecheck.reportcache.type"))
+            type = config.getString("com.horstmann.codecheck.reportcache.type");
+        if (config.hasPath("com.horstmann.codecheck.reportcache.ttl"))
+            ttlSeconds = Long.parseLong(config.getString("com.horstmann.codecheck.reportcache.ttl"));
+        long maxBytes = DEFAULT_MAX_BYTES;
+        if (config.hasPath("com.horstmann.codecheck.reportcache.maxbytes"))
+            maxBytes = Long.parseLong(config.getString("com.horstmann.codecheck.reportcache.maxbytes"));
+        if (type.equalsIgnoreCase("storage"))
+            delegate = new StorageReportStore(storeConn);
+        else if (!type.equalsIgnoreCase("none"))
+            delegate = new MemoryReportStore(maxBytes);
+    }
+
+    ReportCache(ReportStore delegate, long ttlSeconds) {
+        this.delegate = delegate;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    /**
+     * Computes the cache key of a check.
+     * @param problemDigest the digest of the problem files, after parameter replacement
+     * @param submissionFiles the submitted files, whose line endings are normalized
+     */
+    public static String key(String reportType, String repo, String problem, String ccid,
+            String problemDigest, Map<Path, String> submissionFiles) {
+        Map<Path, byte[]> normalizedFiles = new TreeMap<>();
+        for (Map.Entry<Path, String> entry : submissionFiles.entrySet())
+            normalizedFiles.put(entry.getKey(), entry.getValue().replace("\r\n", "\n").getBytes(StandardCharsets.UTF_8));
+        String key = String.join("\n", FORMAT, reportType, repo, problem, ccid, problemDigest, Util.digest(normalizedFiles));
+        return Util.digest(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String get(String key) {
+        if (delegate == null) return null;
+        String report = null;
+        try {
+            report = delegate.read(key, Instant.now().getEpochSecond());
+        } catch (IOException | RuntimeException ex) { // e.g. throttling by the storage backend
+            logger.log(Logger.Level.WARNING, "ReportCache.get: Cannot read " + key + ": " + ex.getMessage());
+        }
+        synchronized (this) {
+            if (report == null) misses++; else hits++;
+        }
+        return report;
+    }
+
+    public void put(String key, String report) {
+        if (delegate == null) return;
+        try {
+            delegate.write(key, report, Instant.now().getEpochSecond() + ttlSeconds);
+        } catch (IOException | RuntimeException ex) {
+            logger.log(Logger.Level.WARNING, "ReportCache.put: Cannot write " + key + ": " + ex.getMessage());
+        }
+    }
+
+    public synchronized String getStatistics() {
+        return String.format("%s hits=%d misses=%d",
+            delegate == null ? "disabled" : delegate.toString(), hits, misses);
+    }
+}
+
+interface ReportStore {
+    String read(String key, long now) throws IOException; // null if absent or expired
+    void write(String key, String report, long expiresAt) throws IOException;
+}
+
+class MemoryReportStore implements ReportStore {
+    private static class Entry {
+        String report;
+        long expiresAt;
+    }
+
+    private final long maxBytes;
+    private long totalBytes;
+    private long evictions;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public MemoryReportStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized String read(String key, long now) {
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (entry.expiresAt < now) {
+            remove(key);
+            return null;
+        }
+        return entry.report;
+    }
+
+    public synchronized void write(String key, String report, long expiresAt) {
+        remove(key);
+        long size = 2L * report.length(); // approximately
+        if (size > maxBytes) return;
+        Entry entry = new Entry();
+        entry.report = report;
+        entry.expiresAt = expiresAt;
+        entries.put(key, entry);
+        totalBytes += size;
+        Iterator<Entry> iter = entries.values().iterator();
+        while (totalBytes > maxBytes && iter.hasNext()) {
+            totalBytes -= 2L * iter.next().report.length();
+            iter.remove();
+            evictions++;
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) totalBytes -= 2L * entry.report.length();
+    }
+
+    public synchronized String toString() {
+        return String.format("memory entries=%d bytes=%d maxBytes=%d evictions=%d",
+            entries.size(), totalBytes, maxBytes, evictions);
+    }
+}
+
+class StorageReportStore implements ReportStore {
+    static final int MAX_REPORT_BYTES = 350_000; // DynamoDB items are limited to 400KB
+    private StorageConnector storeConn;
+    private long tooLarge;
+
+    public StorageReportStore(StorageConnector storeConn) {
+        this.storeConn = storeConn;
+    }
+
+    public String read(String key, long now) throws IOException {
+        ObjectNode node = storeConn.readCachedReport(key);
+        if (node == null || node.get("expiresAt").asLong() < now) return null;
+        return node.get("report").asText();
+    }
+
+    public void write(String key, String report, long expiresAt) throws IOException {
+        if (report.getBytes(StandardCharsets.UTF_8).length > MAX_REPORT_BYTES) {
+            synchronized (this) { tooLarge++; }
+            return;
+        }
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("reportKey", key);
+        node.put("report", report);
+        node.put("expiresAt", expiresAt);
+        storeConn.writeCachedReport(node);
+    }
+
+    public synchronized String toString() {
+        return String.format("storage tooLarge=%d", tooLarge);
+    }
+}
@@ -79,6 +79,8 @@ import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.*;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 
 @ApplicationScoped
@@ -108,6 +110,14 @@ public class StorageConnector {
         delegate.writeProblem(contents, repo, key);
     }
 
+    /**
+     * Gets a tag that changes whenever the problem is rewritten, without reading its contents.
+     * @return the version tag, or null if the problem doesn't exist
+     */
+    public String readProblemVersion(String repo, String key) throws IOException {
+        return delegate.readProblemVersion(repo, key);
+    }
+
     public ObjectNode readAssignment(String assignmentID) throws IOException {
         ObjectNode assignmentNode = delegate.readAssignment(assignmentID);
         /*
@@ -193,11 +203,20 @@ public class StorageConnector {
     public boolean writeWork(JsonNode node) throws IOException {
         return delegate.writeWork(node);
     }
+
+    public ObjectNode readCachedReport(String reportKey) throws IOException {
+        return delegate.readCachedReport(reportKey);
+    }
+
+    public void writeCachedReport(JsonNode node) throws IOException {
+        delegate.writeCachedReport(node);
+    }
 }
 
 interface StorageConnection {
     byte[] readProblem(String repo, String key) throws IOException;
     void writeProblem(byte[] contents, String repo, String key) throws IOException;
+    String readProblemVersion(String repo, String key) throws IOException;
     ObjectNode readAssignment(String assignmentID) throws IOException;
     String readLegacyLTIResource(String resourceID) throws IOException;
     String readLTISharedSecret(String oauthConsumerKey) throws IOException;
@@ -210,6 +229,8 @@ interface StorageConnection {
     void writeSubmission(JsonNode node) throws IOException;
     void writeComment(JsonNode node)  throws IOException;
     boolean writeWork(JsonNode node) throws IOException; // return true if this version was saved (because it was newer)
+    ObjectNode readCachedReport(String reportKey) throws IOException;
+    void writeCachedReport(JsonNode node) throws IOException;
 }
 
 /*
@@ -297,6 +318,13 @@ CodeCheckComments
  CodeCheckLTICredentials
    oauth_consumer_key [primary key]
    shared_secret
+
+ CodeCheckReports is a cache of reports for identical submissions (see ReportCache)
+
+ CodeCheckReports
+   reportKey [primary key]
+   report
+   expiresAt (epoch seconds, used as the DynamoDB TTL attribute)
 */
 
 class AWSStorageConnection implements StorageConnection {
@@ -364,6 +392,20 @@ class AWSStorageConnection implements StorageConnection {
         }
     }
 
+    public String readProblemVersion(String repo, String key) {
+        String bucketName = repo + "." + bucketSuffix;
+        try {
+            return s3Client.headObject(
+                    HeadObjectRequest.builder()
+                            .bucket(bucketName)
+                            .key(key)
+                            .build())
+                    .eTag();
+        } catch (NoSuchKeyException ex) {
+            return null;
+        }
+    }
+
     public ObjectNode readAssignment(String assignmentID) throws IOException {
         return readJsonObjectFromDB("CodeCheckAssignments", "assignmentID", assignmentID);
     }
@@ -418,6 +460,14 @@ class AWSStorageConnection implements StorageConnection {
         return writeNewerJsonObjectToDB("CodeCheckWork", node, "assignmentID", "submittedAt");
     }
 
+    public ObjectNode readCachedReport(String reportKey) throws IOException {
+        return readJsonObjectFromDB("CodeCheckReports", "reportKey", reportKey);
+    }
+
+    public void writeCachedReport(JsonNode node) {
+        writeJsonObjectToDB("CodeCheckReports", node);
+    }
+
     private ObjectNode readJsonObjectFromDB(String tableName, String primaryKeyName, String primaryKeyValue) throws IOException {
         String result = readJsonStringFromDB(tableName, primaryKeyName, primaryKeyValue);
         return result == null ? null : Util.fromJsonString(result);
@@ -643,6 +693,12 @@ class LocalStorageConnection implements StorageConnection {
         }
     }
 
+    public String readProblemVersion(String repo, String key) throws IOException {
+        Path filePath = root.resolve("Problems").resolve(repo).resolve(key + ".zip");
+        if (!Files.exists(filePath)) return null;
+        return Files.getLastModifiedTime(filePath).toMillis() + "-" + Files.size(filePath);
+    }
+
 
     public ObjectNode readAssignment(String assignmentID) throws IOException {
         return readJsonObject("CodeCheckAssignments", assignmentID);
@@ -769,6 +825,18 @@ class LocalStorageConnection implements StorageConnection {
         throw new IOException("Could not acquire lock for " + path);
     }
 
+    public ObjectNode readCachedReport(String reportKey) throws IOException {
+        Path path = path("CodeCheckReports", reportKey);
+        if (!Files.exists(path)) return null;
+        return Util.fromJsonString(Files.readString(path));
+    }
+
+    public void writeCachedReport(JsonNode node) throws IOException {
+        Path path = path("CodeCheckReports", node.get("reportKey").asText());
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, node.toString());
+    }
+
     private Path path(String first, String... rest) {
         Path result = root.resolve(first);
         for (String r : rest) result = result.resolve(r.replaceAll("[^a-zA-Z0-9_-]", ""));
@@ -815,6 +883,10 @@ CREATE TABLE CodeCheckLTICredentials (oauth_consumer_key VARCHAR PRIMARY KEY, sh
 CREATE TABLE CodeCheckComments (assignmentID VARCHAR, workID VARCHAR, comment VARCHAR, UNIQUE (assignmentID, workID))
 CREATE TABLE CodeCheckWork (assignmentID VARCHAR, workID VARCHAR, submittedAt VARCHAR, json VARCHAR, UNIQUE (assignmentID, workID))
 CREATE TABLE CodeCheckSubmissions (submissionID VARCHAR, submittedAt VARCHAR, json VARCHAR)
+CREATE TABLE CodeCheckReports (reportKey VARCHAR PRIMARY KEY, expiresAt BIGINT, json VARCHAR)
+
+Expired reports can be purged periodically with
+DELETE FROM CodeCheckReports WHERE expiresAt < extract(epoch from now())
 
  */
 
@@ -860,6 +932,20 @@ DO UPDATE SET contents = EXCLUDED.contents
         }
     }
 
+    public String readProblemVersion(String repo, String key) throws IOException {
+        try (Connection conn = config.getDatabaseConnection()) {
+            PreparedStatement ps = conn.prepareStatement("SELECT md5(contents) FROM Problems WHERE repo = ? AND key = ?");
+            ps.setString(1, repo);
+            ps.setString(2, key);
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) return rs.getString(1);
+            else return null;
+        } catch (SQLException ex) {
+            logger.log(Logger.Level.ERROR, ex.getMessage());
+            throw new IOException(ex);
+        }
+    }
+
     public ObjectNode readAssignment(String assignmentID) throws IOException {
         try (Connection conn = config.getDatabaseConnection()) {
             PreparedStatement ps = conn.prepareStatement("SELECT json FROM CodeCheckAssignments WHERE assignmentID = ?");
@@ -1027,5 +1113,36 @@ WHERE CodeCheckWork.submittedAt < EXCLUDED.submittedAt
             throw new IOException(ex);
         }
     }
-}
 
+    public ObjectNode readCachedReport(String reportKey) throws IOException {
+        try (Connection conn = config.getDatabaseConnection()) {
+            PreparedStatement ps = conn.prepareStatement("SELECT json FROM CodeCheckReports WHERE reportKey = ?");
+            ps.setString(1, reportKey);
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) return Util.fromJsonString(rs.getString(1));
+            else return null;
+        } catch (SQLException ex) {
+            logger.log(Logger.Level.ERROR, ex.getMessage());
+            throw new IOException(ex);
+        }
+    }
+
+    public void writeCachedReport(JsonNode node) throws IOException {
+        try {
+            try (Connection conn = config.getDatabaseConnection()) {
+                PreparedStatement ps = conn.prepareStatement("""
+INSERT INTO CodeCheckReports VALUES (?, ?, ?) 
+ON CONFLICT (reportKey) 
+DO UPDATE SET expiresAt = EXCLUDED.expiresAt, json = EXCLUDED.json
+""");
+                ps.setString(1, node.get("reportKey").asText());
+                ps.setLong(2, node.get("expiresAt").asLong());
+                ps.setString(3, node.toString());
+                ps.executeUpdate();
+            }
+        } catch (SQLException ex) {
+            logger.log(Logger.Level.ERROR, ex.getMessage());
+            throw new IOException(ex);
+        }
+    }
+}
@@ -20,6 +20,7 @@ import com.horstmann.codecheck.checker.Util;
 public class Upload {
     private static final String DEFAULT_REPO = "ext";
     @Inject private CodeCheck codeCheck;
+    @Inject private GradingQueue gradingQueue;
 
     private Map<Path, byte[]> checkEditKey(String problem, String editKey) throws IOException {
         Map<Path, byte[]> problemFiles = codeCheck.loadProblem(DEFAULT_REPO, problem);
@@ -105,7 +106,9 @@ public class Upload {
         if (problemFiles.containsKey(Path.of("tracer.js"))) {
             codeCheck.saveProblem(DEFAULT_REPO, problem, problemFiles);
         } else {
-            report = codeCheck.checkAndSave(problem, problemFiles);
+            String problemName = problem;
+            report = gradingQueue.submit(GradingQueue.Priority.BULK,
+                () -> codeCheck.checkAndSave(problemName, problemFiles));
         }
         response.append(
                 "<html><head><title></title><meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\"/>");
@@ -151,7 +154,7 @@ public class Upload {
         int index = 1;
         for (Map.Entry<Path, byte[]> entry : problemFilesMap.entrySet()) {
             Path p = entry.getKey();
-            if (!List.of("_outputs", "edit.key").contains(p.getName(0).toString())) {
+            if (!List.of("_outputs", "_setup", "edit.key").contains(p.getName(0).toString())) {
                 String key = entry.getKey().toString();
                 byte[] data = entry.getValue();
                 result.append(renderFileBlock(index, key, data));
@@ -185,7 +188,9 @@ public class Upload {
         ObjectNode responseJSON = mapper.createObjectNode();
         responseJSON.put("problemID", problem);
         responseJSON.put("editKey", editKey);
-        responseJSON.put("report", codeCheck.checkAndSave(problem, problemFiles));
+        String problemName = problem;
+        responseJSON.put("report", gradingQueue.submit(GradingQueue.Priority.BULK,
+            () -> codeCheck.checkAndSave(problemName, problemFiles)));
 
         responseJSON.put("problemURL", createProblemURL(prefix, problem, problemFiles));
         String editURL = prefix + "/private/problem/" + problem + "/" + editKey;
@@ -887,7 +887,19 @@ window.addEventListener('load', async function () {
         submitButton.classList.add('hc-disabled')
         if (downloadButton !== undefined) downloadButton.style.display = 'none'
         try {
-          const result = await postData(setup.url, params)
+          let result
+          try {
+            // Shows the report as it comes in
+            let html = ''
+            result = await postDataStreaming(`${setup.url}/stream`, params, part => {
+              html += part
+              const start = html.indexOf('<body>')
+              if (start >= 0) response.innerHTML = html.substring(start + 6)
+            })
+          } catch (e) {
+            if (e.status !== 404) throw e
+            result = await postData(setup.url, params) // Server without streaming
+          }
           successfulSubmission(result)
         } catch (e) {
           response.innerHTML = `<div>Error: ${e.message}</div>` 
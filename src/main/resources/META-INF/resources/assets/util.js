@@ -25,6 +25,55 @@ async function postData(url = '', data = {}, timeout = 90000) {
   }
 }
 
+/*
+  Posts like postData to a server-sent events endpoint. Calls onProgress with the data
+  of each progress event, and returns the data of the report event.
+*/
+async function postDataStreaming(url = '', data = {}, onProgress = () => {}, timeout = 90000) {
+  const response = await fetch(url, {
+    method: 'POST',
+    mode: 'cors',
+    cache: 'no-cache',
+    credentials: 'include',
+    headers: {
+      'Content-Type': 'application/json',
+      'Accept': 'text/event-stream'
+    },
+    redirect: 'follow',
+    referrerPolicy: 'no-referrer',
+    body: JSON.stringify(data),
+    signal: AbortSignal.timeout(timeout)
+  });
+  if (!response.ok) {
+    const body = await response.text()
+    const error = new Error(response.status === 400 ? `Error: ${body}` : `Error ${response.status} ${response.statusText}: ${body}`)
+    error.status = response.status
+    throw error
+  }
+  const reader = response.body.pipeThrough(new TextDecoderStream()).getReader()
+  let buffer = ''
+  while (true) {
+    const { value, done } = await reader.read()
+    if (done) throw new Error('Incomplete response')
+    buffer += value.replace(/\r\n?/g, '\n')
+    let end
+    while ((end = buffer.indexOf('\n\n')) >= 0) {
+      let name = 'message'
+      const lines = []
+      for (const line of buffer.substring(0, end).split('\n')) {
+        if (line.startsWith('event:')) name = line.substring(6).trim()
+        else if (line.startsWith('data:')) lines.push(line.substring(line.startsWith('data: ') ? 6 : 5))
+      }
+      buffer = buffer.substring(end + 2)
+      if (lines.length === 0) continue
+      const eventData = JSON.parse(lines.join('\n'))
+      if (name === 'progress') onProgress(eventData)
+      else if (name === 'report') return eventData
+      else if (name === 'error') throw new Error(`Error: ${eventData}`)
+    }
+  }
+}
+
 function createButton(clazz, label, action) {
   let button = document.createElement('span')
   button.classList.add('hc-button')
@@ -0,0 +1,185 @@
+package com.horstmann.codecheck.checker;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.horstmann.codecheck.language.JavaLanguage;
+import com.horstmann.codecheck.language.PythonLanguage;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ComrunPoolTest {
+    /*
+     * A comrun node that answers each job with its name in a/_run, or with the given status.
+     */
+    private static class Node {
+        HttpServer server;
+        AtomicInteger jobs = new AtomicInteger();
+        volatile int status = 200;
+        volatile CountDownLatch hold = new CountDownLatch(0);
+
+        Node(String name) throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/api/run", exchange -> {
+                try (exchange) {
+                    exchange.getRequestBody().readAllBytes();
+                    jobs.incrementAndGet();
+                    try {
+                        hold.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    if (status != 200) {
+                        exchange.getResponseHeaders().set("Retry-After", "30");
+                        exchange.sendResponseHeaders(status, -1);
+                        return;
+                    }
+                    exchange.sendResponseHeaders(200, 0);
+                    byte[] output = name.getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseBody().write((output.length + " a/_run\n" + name + "0 .\n").getBytes(StandardCharsets.UTF_8));
+                }
+            });
+            server.createContext("/api/health", exchange -> {
+                try (exchange) {
+                    byte[] health = "{\"load\":0}".getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(200, health.length);
+                    exchange.getResponseBody().write(health);
+                }
+            });
+            server.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/upload";
+        }
+    }
+
+    private static ResourceLoader config(Map<String, String> properties) {
+        return new ResourceLoader() {
+            public InputStream loadResource(String path) { return null; }
+            public String getProperty(String key) { return properties.get(key); }
+        };
+    }
+
+    private static ComrunPool pool(Node... nodes) {
+        List<String> urls = new ArrayList<>();
+        for (Node node : nodes) urls.add(node.url());
+        return ComrunPool.of(String.join(",", urls));
+    }
+
+    private static String execute(ComrunPool pool, int cost) throws InterruptedException, ExecutionException {
+        return new String(executeAsync(pool, cost).get().get(Path.of("a", "_run")), StandardCharsets.UTF_8);
+    }
+
+    private static CompletableFuture<Map<Path, byte[]>> executeAsync(ComrunPool pool, int cost) {
+        Map<Path, byte[]> files = new Util.FileMap();
+        files.put(Path.of("script"), "run a a 5 1000 false Java A.java\n".getBytes(StandardCharsets.UTF_8));
+        return pool.execute(files, cost, (path, contents) -> {});
+    }
+
+    private static void stop(Node... nodes) {
+        for (Node node : nodes) node.server.stop(0);
+    }
+
+    @Test public void testSelectsLeastLoadedNode() throws Exception {
+        Node a = new Node("a");
+        Node b = new Node("b");
+        try {
+            ComrunPool pool = pool(a, b);
+            a.hold = new CountDownLatch(1);
+            CompletableFuture<Map<Path, byte[]>> first = executeAsync(pool, 5);
+            Assertions.assertEquals("b", execute(pool, 1));
+            Assertions.assertEquals("b", execute(pool, 1));
+            a.hold.countDown();
+            Assertions.assertArrayEquals("a".getBytes(StandardCharsets.UTF_8), first.get().get(Path.of("a", "_run")));
+            Assertions.assertEquals(1, a.jobs.get());
+        } finally {
+            stop(a, b);
+        }
+    }
+
+    @Test public void testBusyNodeIsSkipped() throws Exception {
+        Node a = new Node("a");
+        Node b = new Node("b");
+        try {
+            ComrunPool pool = pool(a, b);
+            a.status = 503;
+            Assertions.assertEquals("b", execute(pool, 1)); // a answers 503, and the job goes to b
+            Assertions.assertEquals("b", execute(pool, 1)); // a is not asked until Retry-After
+            Assertions.assertEquals(1, a.jobs.get());
+            Assertions.assertTrue(pool.getStatistics().contains(" busy"));
+        } finally {
+            stop(a, b);
+        }
+    }
+
+    @Test public void testAllNodesBusy() throws Exception {
+        Node a = new Node("a");
+        try {
+            ComrunPool pool = pool(a);
+            a.status = 503;
+            ExecutionException ex = Assertions.assertThrows(ExecutionException.class, () -> execute(pool, 1));
+            ComrunPool.BusyException busy = Assertions.assertInstanceOf(ComrunPool.BusyException.class, ex.getCause());
+            Assertions.assertTrue(busy.getRetryAfterSeconds() >= 29);
+            ex = Assertions.assertThrows(ExecutionException.class, () -> execute(pool, 1));
+            Assertions.assertInstanceOf(ComrunPool.BusyException.class, ex.getCause());
+            Assertions.assertEquals(1, a.jobs.get());
+        } finally {
+            stop(a);
+        }
+    }
+
+    @Test public void testFailedNodeIsTakenOutOfRotation() throws Exception {
+        Node a = new Node("a");
+        Node b = new Node("b");
+        try {
+            ComrunPool pool = pool(a, b);
+            a.status = 500;
+            // Retried on b. The circuit of a opens after three consecutive failures, or
+            // more if the first health check succeeded in between.
+            for (int i = 0; i < 6; i++) Assertions.assertEquals("b", execute(pool, 1));
+            Assertions.assertTrue(pool.getStatistics().contains(" open"));
+            int failed = a.jobs.get();
+            for (int i = 0; i < 3; i++) Assertions.assertEquals("b", execute(pool, 1));
+            Assertions.assertEquals(failed, a.jobs.get());
+        } finally {
+            stop(a, b);
+        }
+    }
+
+    @Test public void testRemoteURLsByLanguage() {
+        Map<String, String> properties = new HashMap<>();
+        ResourceLoader config = config(properties);
+        Assertions.assertNull(ComrunPool.remoteURLs(config, new JavaLanguage()));
+        properties.put("com.horstmann.codecheck.comrun.remote", "http://a/api/upload, http://b/api/upload");
+        properties.put("com.horstmann.codecheck.comrun.remote.java", "http://b/api/upload http://c/api/upload");
+        Assertions.assertEquals("http://b/api/upload http://c/api/upload", ComrunPool.remoteURLs(config, new JavaLanguage()));
+        Assertions.assertEquals("http://a/api/upload, http://b/api/upload", ComrunPool.remoteURLs(config, new PythonLanguage()));
+    }
+
+    @Test public void testNodeCount() {
+        Map<String, String> properties = new HashMap<>();
+        ResourceLoader config = config(properties);
+        Assertions.assertEquals(0, ComrunPool.nodeCount(config));
+        properties.put("com.horstmann.codecheck.comrun.remote", "http://a/api/upload, http://b/api/upload");
+        Assertions.assertEquals(2, ComrunPool.nodeCount(config));
+        properties.put("com.horstmann.codecheck.comrun.remote.java", "http://b/api/upload http://c/api/upload");
+        Assertions.assertEquals(3, ComrunPool.nodeCount(config));
+    }
+}
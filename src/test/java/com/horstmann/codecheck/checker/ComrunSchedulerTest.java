@@ -0,0 +1,115 @@
+package com.horstmann.codecheck.checker;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ComrunSchedulerTest {
+    private Map<Path, byte[]> files = new TreeMap<>();
+    private List<Step> steps = new ArrayList<>();
+
+    private void file(String path, String contents) {
+        files.put(Path.of(path), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void step(Step.Type type, String dir, Path input, String... args) {
+        steps.add(new Step(type, dir, List.of(args), List.of(), List.of(), input));
+    }
+
+    // As Plan.compile and Plan.run
+    private void compile(String dir, String sourceDir) {
+        step(Step.Type.PREPARE, dir, null, "use", sourceDir);
+        step(Step.Type.COMPILE, dir, null, "Java", "Hello.java");
+    }
+
+    private void run(String compileDir, String runDir, String id, String input, String... args) {
+        if (!compileDir.equals(runDir)) step(Step.Type.PREPARE, runDir, null, compileDir);
+        file("in/" + id, input);
+        List<String> runArgs = new ArrayList<>(List.of(id, "5", "10000", "false", "Java", "Hello.java"));
+        runArgs.addAll(List.of(args));
+        step(Step.Type.RUN, runDir, Path.of("in", id), runArgs.toArray(new String[0]));
+    }
+
+    private static String script(String... lines) {
+        return String.join("\n", lines) + "\n";
+    }
+
+    @Test public void testSolutionAsSubmission() {
+        file("use/Greeter.java", "class Greeter {}");
+        file("submission/Hello.java", "class Hello {}");
+        file("solution/Hello.java", "class Hello {}");
+        compile("submissionrun", "submission");
+        compile("solutionrun", "solution");
+        run("submissionrun", "submissionrun1", "submissionrun1", "42");
+        run("solutionrun", "solutionrun2", "solutionrun2", "42");
+        Map<Path, Path> aliases = new HashMap<>();
+        Assertions.assertEquals(script(
+            "prepare submissionrun use submission",
+            "compile submissionrun Java Hello.java",
+            "prepare solutionrun submissionrun",
+            "prepare submissionrun1 submissionrun",
+            "run submissionrun1 submissionrun1 5 10000 false Java Hello.java",
+            "prepare solutionrun2 solutionrun"),
+            ComrunScheduler.deduplicate(steps, files, aliases));
+        Assertions.assertEquals(Map.of(
+            Path.of("solutionrun", "_compile"), Path.of("submissionrun", "_compile"),
+            Path.of("solutionrun", "_errors"), Path.of("submissionrun", "_errors"),
+            Path.of("solutionrun2", "_run"), Path.of("submissionrun1", "_run")), aliases);
+    }
+
+    @Test public void testDifferentSourcesAreNotDeduplicated() {
+        file("submission/Hello.java", "class Hello {}");
+        file("solution/Hello.java", "class Hello { }");
+        compile("submissionrun", "submission");
+        compile("solutionrun", "solution");
+        run("submissionrun", "submissionrun1", "submissionrun1", "42");
+        run("solutionrun", "solutionrun2", "solutionrun2", "42");
+        Map<Path, Path> aliases = new HashMap<>();
+        String script = ComrunScheduler.deduplicate(steps, files, aliases);
+        for (Step step : steps) Assertions.assertTrue(script.contains(step.toScript() + "\n"), step.toScript());
+        Assertions.assertTrue(aliases.isEmpty());
+    }
+
+    @Test public void testRunWithDifferentInput() {
+        file("submission/Hello.java", "class Hello {}");
+        file("solution/Hello.java", "class Hello {}");
+        compile("submissionrun", "submission");
+        compile("solutionrun", "solution");
+        run("submissionrun", "submissionrun1", "submissionrun1", "42");
+        run("solutionrun", "solutionrun2", "solutionrun2", "43");
+        Map<Path, Path> aliases = new HashMap<>();
+        String script = ComrunScheduler.deduplicate(steps, files, aliases);
+        Assertions.assertTrue(script.contains("prepare solutionrun submissionrun\n"));
+        Assertions.assertTrue(script.contains("run solutionrun2 solutionrun2 5 10000 false Java Hello.java\n"));
+        Assertions.assertFalse(aliases.containsKey(Path.of("solutionrun2", "_run")));
+    }
+
+    @Test public void testSkippedRunPrecedesLaterRunInItsDirectory() {
+        // As the calls of Main.doCalls, which run in the same directory
+        file("submission/Hello.java", "class Hello {}");
+        file("solution/Hello.java", "class Hello {}");
+        compile("submissioncall", "submission");
+        compile("solutioncall", "solution");
+        run("submissioncall", "submissioncall", "submissioncall0", "", "1");
+        run("solutioncall", "solutioncall", "solutioncall0", "", "1");
+        run("solutioncall", "solutioncall", "solutioncall1", "", "2");
+        Map<Path, Path> aliases = new HashMap<>();
+        Assertions.assertEquals(script(
+            "prepare submissioncall use submission",
+            "compile submissioncall Java Hello.java",
+            "prepare solutioncall submissioncall",
+            "run submissioncall submissioncall0 5 10000 false Java Hello.java 1",
+            "run solutioncall solutioncall0 5 10000 false Java Hello.java 1",
+            "run solutioncall solutioncall1 5 10000 false Java Hello.java 2"),
+            ComrunScheduler.deduplicate(steps, files, aliases));
+        Assertions.assertEquals(Path.of("submissioncall0", "_run"), aliases.get(Path.of("solutioncall0", "_run")));
+        Assertions.assertFalse(aliases.containsKey(Path.of("solutioncall1", "_run")));
+    }
+}
@@ -0,0 +1,38 @@
+package com.horstmann.codecheck.checker;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class MainTest {
+    private static String delimiter(int k) {
+        return Main.CALL_DELIMITER + " " + k + "\n";
+    }
+
+    @Test public void testSplitCalls() {
+        String output = delimiter(1) + "1\n" + delimiter(2) + "4\n" + delimiter(3) + "9\n";
+        Assertions.assertArrayEquals(new String[] { "1\n", "4\n", "9\n" }, Main.splitCalls(output, 3));
+    }
+
+    @Test public void testSplitCallsWithEmptyOutputs() {
+        String output = delimiter(1) + delimiter(2) + "4\n" + delimiter(3);
+        Assertions.assertArrayEquals(new String[] { "", "4\n", "" }, Main.splitCalls(output, 3));
+    }
+
+    @Test public void testSplitCallsSharesPrelude() {
+        String output = "Picked up JAVA_TOOL_OPTIONS\n" + delimiter(1) + "1\n" + delimiter(2) + "4\n";
+        Assertions.assertArrayEquals(new String[] { "Picked up JAVA_TOOL_OPTIONS\n1\n", "Picked up JAVA_TOOL_OPTIONS\n4\n" },
+            Main.splitCalls(output, 2));
+    }
+
+    @Test public void testSplitCallsOfTerminatedTester() {
+        String output = "prelude\n" + delimiter(1) + "1\n" + delimiter(2) + "Killed\n";
+        Assertions.assertArrayEquals(new String[] { "prelude\n1\n", "prelude\nKilled\n", "prelude\n" }, Main.splitCalls(output, 3));
+        Assertions.assertArrayEquals(new String[] { "Killed\n", "Killed\n" }, Main.splitCalls("Killed\n", 2));
+    }
+
+    @Test public void testSplitCallsIgnoresDelimitersOutOfOrder() {
+        // A call that prints the delimiter of a later call doesn't take over its output
+        String output = delimiter(1) + delimiter(3) + "x\n" + delimiter(2) + "4\n" + delimiter(3) + "9\n";
+        Assertions.assertArrayEquals(new String[] { delimiter(3) + "x\n", "4\n", "9\n" }, Main.splitCalls(output, 3));
+    }
+}
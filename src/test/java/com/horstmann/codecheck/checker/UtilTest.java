@@ -0,0 +1,285 @@
+package com.horstmann.codecheck.checker;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class UtilTest {
+    private static final byte[] END = "0 .\n".getBytes(StandardCharsets.UTF_8);
+    private static final Path FRAMES_PY = Path.of("comrun", "bin", "frames.py");
+
+    private static Map<Path, byte[]> files(String... pathsAndContents) {
+        Map<Path, byte[]> result = new TreeMap<>();
+        for (int i = 0; i < pathsAndContents.length; i += 2)
+            result.put(Path.of(pathsAndContents[i]), pathsAndContents[i + 1].getBytes(StandardCharsets.UTF_8));
+        return result;
+    }
+
+    private static void assertFilesEqual(Map<Path, byte[]> expected, Map<Path, byte[]> actual) {
+        Assertions.assertEquals(expected.keySet(), actual.keySet());
+        for (Path p : expected.keySet()) Assertions.assertArrayEquals(expected.get(p), actual.get(p), p.toString());
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.writeBytes(part);
+        return out.toByteArray();
+    }
+
+    private static byte[] frames(Map<Path, byte[]> files) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Util.writeFrames(files, out);
+        return out.toByteArray();
+    }
+
+    @Test public void testFramesRoundTrip() throws IOException {
+        byte[] binary = new byte[256];
+        for (int i = 0; i < binary.length; i++) binary[i] = (byte) i;
+        Map<Path, byte[]> files = files("a/b/Hello.java", "class Hello {}\n", "empty", "", "lines", "\n\n0 .\n");
+        files.put(Path.of("binary"), binary);
+        assertFilesEqual(files, Util.readFrames(new ByteArrayInputStream(concat(frames(files), END))));
+    }
+
+    @Test public void testReadFramesStopsAtEndMarker() throws IOException {
+        InputStream in = new ByteArrayInputStream(concat(frames(files("a", "1")), END, frames(files("b", "2"))));
+        List<Path> read = new ArrayList<>();
+        Util.readFrames(in, (path, contents) -> read.add(path));
+        Assertions.assertEquals(List.of(Path.of("a")), read);
+        assertFilesEqual(Map.of(), Util.readFrames(new ByteArrayInputStream(END)));
+    }
+
+    @Test public void testReadFramesOfTruncatedStream() throws IOException {
+        byte[] frames = frames(files("a", "hello", "b", "world"));
+        // Without the end marker, in the contents of a file, and in a header
+        for (int length : new int[] { frames.length, frames.length - 2, 4 }) {
+            byte[] truncated = Arrays.copyOf(frames, length);
+            Assertions.assertThrows(IOException.class, () -> Util.readFrames(new ByteArrayInputStream(truncated)));
+        }
+        Assertions.assertThrows(IOException.class,
+            () -> Util.readFrames(new ByteArrayInputStream("garbage\n".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test public void testReadFramesWithBadLength() {
+        for (String header : new String[] { "x a\n", "-5 a\n", "99999999999 a\n" }) {
+            IOException ex = Assertions.assertThrows(IOException.class,
+                () -> Util.readFrames(new ByteArrayInputStream(header.getBytes(StandardCharsets.UTF_8))));
+            Assertions.assertTrue(ex.getMessage().startsWith("Bad frame header"), ex.getMessage());
+        }
+    }
+
+    @Test public void testFramesWithReferences() {
+        Map<Path, byte[]> files = files("use/a", "shared", "use/b", "shared", "submission/c", "own");
+        String hash = Util.digest("shared".getBytes(StandardCharsets.UTF_8));
+        Set<Path> references = Set.of(Path.of("use/a"), Path.of("use/b"));
+        String withoutBlobs = new String(concat(Util.frames(files, references, Set.of()).toArray(new byte[0][])), StandardCharsets.UTF_8);
+        Assertions.assertEquals("3 submission/c\nown=" + hash + " use/a\n=" + hash + " use/b\n", withoutBlobs);
+        // Each blob is only sent once
+        String withBlobs = new String(concat(Util.frames(files, references, Set.of(hash)).toArray(new byte[0][])), StandardCharsets.UTF_8);
+        Assertions.assertEquals("3 submission/c\nown6 =" + hash + "\nshared=" + hash + " use/a\n=" + hash + " use/b\n", withBlobs);
+    }
+
+    private static byte[] framesPy(Path dir, byte[] input, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of("python3", FRAMES_PY.toAbsolutePath().toString()));
+        command.addAll(List.of(args));
+        Process process;
+        try {
+            process = new ProcessBuilder(command).directory(dir.toFile())
+                .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        } catch (IOException ex) {
+            Assumptions.abort("python3 is not available");
+            return null;
+        }
+        try (OutputStream in = process.getOutputStream()) {
+            in.write(input);
+        }
+        byte[] output = process.getInputStream().readAllBytes();
+        Assertions.assertEquals(0, process.waitFor());
+        return output;
+    }
+
+    @Test public void testFramesPyUnpack() throws IOException, InterruptedException {
+        Path base = Files.createTempDirectory("codecheck");
+        Path dir = Files.createDirectory(base.resolve("work"));
+        Map<Path, byte[]> files = files("a/b/Hello.java", "class Hello {}\n", "empty", "");
+        Map<Path, byte[]> rejected = files("../outside", "x", base.resolve("absolute").toString(), "x", "a/../../up", "x");
+        Map<Path, byte[]> all = new TreeMap<>(files);
+        all.putAll(rejected);
+        framesPy(dir, concat(frames(all), END, frames(files("after", "end")), "truncated".getBytes(StandardCharsets.UTF_8)), "unpack");
+        for (Path p : files.keySet()) Assertions.assertArrayEquals(files.get(p), Files.readAllBytes(dir.resolve(p)));
+        Assertions.assertFalse(Files.exists(base.resolve("outside")));
+        Assertions.assertFalse(Files.exists(base.resolve("absolute")));
+        Assertions.assertFalse(Files.exists(base.resolve("up")));
+        Assertions.assertFalse(Files.exists(dir.resolve("after")));
+        // A truncated stream keeps the files that were complete
+        Path dir2 = Files.createDirectory(base.resolve("work2"));
+        byte[] truncated = frames(files("first", "1", "second", "22"));
+        framesPy(dir2, Arrays.copyOf(truncated, truncated.length - 1), "unpack");
+        Assertions.assertArrayEquals("1".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(dir2.resolve("first")));
+    }
+
+    @Test public void testFramesPyPack() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("codecheck");
+        Map<Path, byte[]> files = files("out/a/_run", "hello\n", "out/a/_errors", "", "out/b/_compile", "x");
+        for (Map.Entry<Path, byte[]> entry : files.entrySet()) {
+            Files.createDirectories(dir.resolve(entry.getKey()).getParent());
+            Files.write(dir.resolve(entry.getKey()), entry.getValue());
+        }
+        byte[] packed = framesPy(dir, new byte[0], "pack", "--sent", "sent", "out/a", "out/b/_compile", "out/missing");
+        assertFilesEqual(files, Util.readFrames(new ByteArrayInputStream(concat(packed, framesPy(dir, new byte[0], "end")))));
+        // Unchanged files are only sent once
+        Files.write(dir.resolve("out/a/_run"), "changed\n".getBytes(StandardCharsets.UTF_8));
+        packed = framesPy(dir, new byte[0], "pack", "--sent", "sent", "out");
+        assertFilesEqual(files("out/a/_run", "changed\n"), Util.readFrames(new ByteArrayInputStream(concat(packed, END))));
+    }
+
+    @Test public void testFramesPyResolve() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("codecheck");
+        Map<Path, byte[]> files = files("use/a", "shared", "submission/c", "own", "use/missing", "gone");
+        String hash = Util.digest("shared".getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve(hash), "shared".getBytes(StandardCharsets.UTF_8));
+        byte[] request = concat(Util.frames(files, Set.of(Path.of("use/a"), Path.of("use/missing")), Set.of()).toArray(new byte[0][]));
+        byte[] resolved = framesPy(dir, concat(request, END), "resolve", dir.toString());
+        // A reference to a missing blob is dropped, and the file is missing in the job
+        assertFilesEqual(files("use/a", "shared", "submission/c", "own"), Util.readFrames(new ByteArrayInputStream(resolved)));
+    }
+
+    private interface Handler {
+        byte[] handle(HttpExchange exchange) throws IOException;
+    }
+
+    private static HttpServer server(Handler handler) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/run", exchange -> {
+            try (exchange) {
+                byte[] response = handler.handle(exchange);
+                if (exchange.getResponseCode() == -1) exchange.sendResponseHeaders(200, 0);
+                exchange.getResponseBody().write(response);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static String url(HttpServer server) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/run";
+    }
+
+    @Test public void testPostFramesRoundTrip() throws Exception {
+        HttpServer server = server(exchange -> concat(exchange.getRequestBody().readAllBytes(), END)); // echoes the files
+        try {
+            Map<Path, byte[]> files = files("a/_run", "hello", "b/_errors", "");
+            Map<Path, byte[]> received = new TreeMap<>();
+            Map<Path, byte[]> outputs = Util.postFramesAsync(url(server), files, received::put).get();
+            assertFilesEqual(files, outputs);
+            assertFilesEqual(files, received);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test public void testPostFramesSendsMissingBlobs() throws Exception {
+        byte[] shared = "x".repeat(2000).getBytes(StandardCharsets.UTF_8);
+        String hash = Util.digest(shared);
+        List<String> requests = new ArrayList<>();
+        HttpServer server = server(exchange -> {
+            String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            requests.add(request);
+            if (!request.contains(shared.length + " =" + hash + "\n")) {
+                exchange.getResponseHeaders().set("Content-Type", "text/plain");
+                exchange.sendResponseHeaders(409, 0);
+                return (hash + "\n").getBytes(StandardCharsets.UTF_8);
+            }
+            return concat(frames(files("a/_run", "ok")), END);
+        });
+        try {
+            Map<Path, byte[]> files = files("submission/A.java", "class A {}");
+            files.put(Path.of("use/data.txt"), shared);
+            Map<Path, byte[]> outputs = Util.postFramesAsync(url(server), files, Set.of(Path.of("use/data.txt")), (p, c) -> {}).get();
+            assertFilesEqual(files("a/_run", "ok"), outputs);
+            Assertions.assertEquals(2, requests.size());
+            Assertions.assertTrue(requests.get(0).endsWith("=" + hash + " use/data.txt\n"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test public void testPostFramesUnavailable() throws Exception {
+        HttpServer server = server(exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.getResponseHeaders().set("Retry-After", "7");
+            exchange.sendResponseHeaders(503, 0);
+            return new byte[0];
+        });
+        try {
+            ExecutionException ex = Assertions.assertThrows(ExecutionException.class,
+                () -> Util.postFramesAsync(url(server), files("a", "1"), (p, c) -> {}).get());
+            Util.UnavailableException unavailable = Assertions.assertInstanceOf(Util.UnavailableException.class, ex.getCause());
+            Assertions.assertEquals(7, unavailable.getRetryAfterSeconds());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test public void testPostFramesIncompleteResponse() throws Exception {
+        HttpServer server = server(exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            return frames(files("a/_run", "partial")); // no end marker, as when comrun dies
+        });
+        try {
+            List<Path> received = new ArrayList<>();
+            ExecutionException ex = Assertions.assertThrows(ExecutionException.class,
+                () -> Util.postFramesAsync(url(server), files("a", "1"), (p, c) -> received.add(p)).get());
+            Assertions.assertInstanceOf(IOException.class, ex.getCause());
+            Assertions.assertEquals(List.of(Path.of("a/_run")), received);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test public void testPostFramesBadResponse() throws Exception {
+        HttpServer server = server(exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            return "abc a/_run\n".getBytes(StandardCharsets.UTF_8);
+        });
+        try {
+            ExecutionException ex = Assertions.assertThrows(ExecutionException.class,
+                () -> Util.postFramesAsync(url(server), files("a", "1"), (p, c) -> {}).get(10, TimeUnit.SECONDS));
+            Assertions.assertInstanceOf(IOException.class, ex.getCause());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test public void testPostFramesFailingListener() throws Exception {
+        HttpServer server = server(exchange -> concat(exchange.getRequestBody().readAllBytes(), END));
+        try {
+            RuntimeException failure = new IllegalStateException();
+            ExecutionException ex = Assertions.assertThrows(ExecutionException.class,
+                () -> Util.postFramesAsync(url(server), files("a", "1"), (p, c) -> { throw failure; }).get(10, TimeUnit.SECONDS));
+            Assertions.assertSame(failure, ex.getCause());
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package services;
+
+import com.horstmann.codecheck.checker.Cancellation;
+import com.horstmann.codecheck.checker.ResourceLoader;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+public class GradingQueueTest {
+    /*
+     * Submits a job on another thread. The job records its name and waits for the latch.
+     */
+    private static CompletableFuture<String> submit(GradingQueue queue, GradingQueue.Priority priority, String name,
+            CountDownLatch latch, List<String> started, Cancellation cancellation) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> {
+            try {
+                result.complete(queue.submit(priority, () -> {
+                    synchronized (started) { started.add(name); }
+                    latch.await();
+                    return name;
+                }, cancellation));
+            } catch (Throwable ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+        return result;
+    }
+
+    private static void awaitStatistics(GradingQueue queue, String expected) throws InterruptedException {
+        for (int i = 0; i < 500 && !queue.getStatistics().contains(expected); i++) Thread.sleep(10);
+        Assertions.assertTrue(queue.getStatistics().contains(expected), queue.getStatistics());
+    }
+
+    @Test public void testAdmitsByPriority() throws Exception {
+        GradingQueue queue = new GradingQueue(1, 10);
+        List<String> started = new ArrayList<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        CompletableFuture<String> running = submit(queue, GradingQueue.Priority.INTERACTIVE, "running", latch, started, null);
+        awaitStatistics(queue, "running=1/1 waiting=0/10");
+        CompletableFuture<String> bulk = submit(queue, GradingQueue.Priority.BULK, "bulk", latch, started, null);
+        awaitStatistics(queue, "waiting=1/10");
+        CompletableFuture<String> graded = submit(queue, GradingQueue.Priority.GRADED, "graded", latch, started, null);
+        awaitStatistics(queue, "waiting=2/10");
+        Assertions.assertEquals(List.of("running"), started);
+        latch.countDown();
+        Assertions.assertEquals("running", running.get());
+        Assertions.assertEquals("graded", graded.get());
+        Assertions.assertEquals("bulk", bulk.get());
+        Assertions.assertEquals(List.of("running", "graded", "bulk"), started);
+        awaitStatistics(queue, "running=0/1 waiting=0/10 admitted=3 rejected=0");
+    }
+
+    @Test public void testRejectsWhenFull() throws Exception {
+        GradingQueue queue = new GradingQueue(1, 1);
+        List<String> started = new ArrayList<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        CompletableFuture<String> running = submit(queue, GradingQueue.Priority.GRADED, "running", latch, started, null);
+        awaitStatistics(queue, "running=1/1");
+        CompletableFuture<String> waiting = submit(queue, GradingQueue.Priority.GRADED, "waiting", latch, started, null);
+        awaitStatistics(queue, "waiting=1/1");
+        ExecutionException ex = Assertions.assertThrows(ExecutionException.class,
+            () -> submit(queue, GradingQueue.Priority.GRADED, "rejected", latch, started, null).get());
+        Assertions.assertInstanceOf(GradingQueue.SaturatedException.class, ex.getCause());
+        latch.countDown();
+        Assertions.assertEquals("running", running.get());
+        Assertions.assertEquals("waiting", waiting.get());
+        Assertions.assertEquals(List.of("running", "waiting"), started);
+        awaitStatistics(queue, "running=0/1 waiting=0/1 admitted=2 rejected=1");
+    }
+
+    @Test public void testCancelledWhileWaiting() throws Exception {
+        GradingQueue queue = new GradingQueue(1, 10);
+        List<String> started = new ArrayList<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        CompletableFuture<String> running = submit(queue, GradingQueue.Priority.GRADED, "running", latch, started, null);
+        awaitStatistics(queue, "running=1/1");
+        Cancellation cancellation = new Cancellation();
+        CompletableFuture<String> cancelled = submit(queue, GradingQueue.Priority.GRADED, "cancelled", latch, started, cancellation);
+        awaitStatistics(queue, "waiting=1/10");
+        cancellation.cancel();
+        Assertions.assertThrows(CancellationException.class, () -> cancelled.get()); // not wrapped by get
+        awaitStatistics(queue, "running=1/1 waiting=0/10");
+        latch.countDown();
+        Assertions.assertEquals("running", running.get());
+        // The slot isn't passed to the cancelled job
+        awaitStatistics(queue, "running=0/1 waiting=0/10 admitted=1");
+        Assertions.assertEquals(List.of("running"), started);
+    }
+
+    @Test public void testCancelledBeforeSubmit() throws Exception {
+        GradingQueue queue = new GradingQueue(1, 10);
+        Cancellation cancellation = new Cancellation();
+        cancellation.cancel();
+        List<String> started = new ArrayList<>();
+        Assertions.assertThrows(CancellationException.class,
+            () -> submit(queue, GradingQueue.Priority.GRADED, "cancelled", new CountDownLatch(0), started, cancellation).get());
+        Assertions.assertEquals(List.of(), started);
+        awaitStatistics(queue, "running=0/1 waiting=0/10 admitted=0");
+    }
+
+    @Test public void testNodes() {
+        Map<String, String> properties = new HashMap<>();
+        ResourceLoader config = new ResourceLoader() {
+            public InputStream loadResource(String path) { return null; }
+            public String getProperty(String key) { return properties.get(key); }
+        };
+        Assertions.assertEquals(1, GradingQueue.nodes(config)); // local comrun
+        properties.put("com.horstmann.codecheck.comrun.remote", "http://a/api/upload, http://b/api/upload");
+        properties.put("com.horstmann.codecheck.comrun.remote.python", "http://c/api/upload");
+        Assertions.assertEquals(3, GradingQueue.nodes(config));
+        properties.put("com.horstmann.codecheck.comrun.embedded", "/opt/codecheck");
+        Assertions.assertEquals(1, GradingQueue.nodes(config));
+    }
+}
@@ -0,0 +1,103 @@
+package services;
+
+import com.horstmann.codecheck.checker.Main;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ReportCacheTest {
+    private static String key(String ccid, Map<Path, String> submissionFiles) {
+        return ReportCache.key("NJS", "ext", "problem", ccid, "digest", submissionFiles);
+    }
+
+    @Test public void testKeyNormalizesLineEndings() {
+        Assertions.assertEquals(key("ccid", Map.of(Path.of("Hello.java"), "class Hello {\n}\n")),
+            key("ccid", Map.of(Path.of("Hello.java"), "class Hello {\r\n}\r\n")));
+    }
+
+    @Test public void testKeyDependsOnCheck() {
+        Map<Path, String> files = Map.of(Path.of("Hello.java"), "class Hello {}");
+        String key = key("ccid", files);
+        Assertions.assertNotEquals(key, key("other", files));
+        Assertions.assertNotEquals(key, key("ccid", Map.of(Path.of("Hello.java"), "class Hello { }")));
+        Assertions.assertNotEquals(key, key("ccid", Map.of(Path.of("Goodbye.java"), "class Hello {}")));
+        Assertions.assertNotEquals(key, ReportCache.key("HTML", "ext", "problem", "ccid", "digest", files));
+        Assertions.assertNotEquals(key, ReportCache.key("NJS", "ext", "problem", "ccid", "other", files));
+    }
+
+    @Test public void testProblemDigestIgnoresSavedFiles() {
+        Map<Path, byte[]> files = new HashMap<>();
+        files.put(Path.of("solution", "Hello.java"), "class Hello {}".getBytes(StandardCharsets.UTF_8));
+        String digest = ProblemCache.digest(files);
+        files.put(Path.of("_outputs", "solutionrun1", "_run"), "Hello".getBytes(StandardCharsets.UTF_8));
+        files.put(Path.of("_setup", "report-1.json"), "{}".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertEquals(digest, ProblemCache.digest(files));
+        files.put(Path.of("solution", "Hello.java"), "class Hello { }".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertNotEquals(digest, ProblemCache.digest(files));
+    }
+
+    @Test public void testMemoryStoreExpires() {
+        MemoryReportStore store = new MemoryReportStore(1000);
+        store.write("a", "report", 100);
+        Assertions.assertEquals("report", store.read("a", 100));
+        Assertions.assertNull(store.read("a", 101));
+        Assertions.assertNull(store.read("a", 0)); // removed when found expired
+        Assertions.assertNull(store.read("b", 0));
+    }
+
+    @Test public void testMemoryStoreEvictsLeastRecentlyUsed() {
+        MemoryReportStore store = new MemoryReportStore(100); // 50 chars
+        store.write("a", "x".repeat(20), 100);
+        store.write("b", "y".repeat(20), 100);
+        store.read("a", 0);
+        store.write("c", "z".repeat(20), 100);
+        Assertions.assertEquals("x".repeat(20), store.read("a", 0));
+        Assertions.assertNull(store.read("b", 0));
+        Assertions.assertEquals("z".repeat(20), store.read("c", 0));
+        store.write("d", "w".repeat(51), 100); // too large to be stored
+        Assertions.assertNull(store.read("d", 0));
+        Assertions.assertEquals("x".repeat(20), store.read("a", 0));
+    }
+
+    @Test public void testMemoryStoreReplaces() {
+        MemoryReportStore store = new MemoryReportStore(100);
+        store.write("a", "x".repeat(30), 100);
+        store.write("a", "y".repeat(30), 100);
+        store.write("b", "z".repeat(20), 100); // fits since the replaced report was removed
+        Assertions.assertEquals("y".repeat(30), store.read("a", 0));
+        Assertions.assertEquals("z".repeat(20), store.read("b", 0));
+    }
+
+    @Test public void testCachedReportsAreStamped() {
+        String cached = "Submission " + Main.SUBMISSION_PLACEHOLDER + " at " + Main.TIME_PLACEHOLDER
+            + " (" + Main.TIME_PLACEHOLDER + ") in " + Main.ELAPSED_PLACEHOLDER;
+        String first = new Main.Stamp().apply(cached);
+        String second = new Main.Stamp().apply(cached);
+        Assertions.assertFalse(first.contains("~~CodeCheck-"));
+        Assertions.assertTrue(first.matches("Submission [0-9A-Z]+ at (\\S+) \\(\\1\\) in \\d+ ms"), first);
+        Assertions.assertNotEquals(first.split(" ")[1], second.split(" ")[1]);
+        Main.Stamp stamp = new Main.Stamp();
+        Assertions.assertEquals(stamp.apply(Main.SUBMISSION_PLACEHOLDER), stamp.apply(Main.SUBMISSION_PLACEHOLDER));
+    }
+
+    @Test public void testFailingStoreIsAMiss() {
+        ReportStore failing = new ReportStore() {
+            public String read(String key, long now) { throw new IllegalStateException("throttled"); }
+            public void write(String key, String report, long expiresAt) { throw new IllegalStateException("throttled"); }
+        };
+        ReportCache cache = new ReportCache(failing, 100);
+        cache.put("a", "report");
+        Assertions.assertNull(cache.get("a"));
+        Assertions.assertTrue(cache.getStatistics().endsWith("hits=0 misses=1"), cache.getStatistics());
+    }
+
+    @Test public void testStorageStoreSkipsLargeReports() throws Exception {
+        StorageReportStore store = new StorageReportStore(null); // not reached
+        store.write("a", "x".repeat(StorageReportStore.MAX_REPORT_BYTES + 1), 100);
+        Assertions.assertEquals("storage tooLarge=1", store.toString());
+    }
+}